@@ -0,0 +1,148 @@
+package org.jlab.rec.htcc;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded cache of the parameters of recently used runs in front of another
+ * provider.
+ * <p>
+ * A hit is normally an array read: the entry of each run is remembered in a
+ * small table indexed by run number, so that no boxed map key is needed.
+ * A miss loads the run on the calling thread; other threads asking for the
+ * same run wait for that load, while threads asking for other runs are not
+ * held up.
+ * <p>
+ * Recency is kept approximately so that hits do not write shared state: the
+ * clock only advances on a miss, and a hit stamps its entry with the current
+ * clock unless it already carries it.  When the cache is over capacity, a
+ * run not used since the earliest miss is evicted; runs used between the
+ * same two misses count as equally recent.
+ */
+final class HTCCCalibrationCache implements HTCCCalibrationProvider {
+
+    private static final class Entry {
+        final int run;
+        final FutureTask<ReconstructionParameters> load;
+        volatile long lastUsed;
+        volatile boolean evicted;
+
+        Entry(int run, FutureTask<ReconstructionParameters> load, long lastUsed) {
+            this.run = run;
+            this.load = load;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    // Size of the table of recently looked up entries, a power of two
+    private static final int HINTS = 64;
+
+    private final HTCCCalibrationProvider provider;
+    private final int capacity;
+    private final ConcurrentHashMap<Integer, Entry> entries = new ConcurrentHashMap<Integer, Entry>();
+    private final AtomicLong clock = new AtomicLong();
+    // Entry of each run modulo HINTS; only written after a map lookup
+    private final AtomicReferenceArray<Entry> hints = new AtomicReferenceArray<Entry>(HINTS);
+
+    /**
+     * Creates a cache.
+     * @param provider the provider loading runs missing from the cache
+     * @param capacity the maximum number of runs kept
+     */
+    HTCCCalibrationCache(HTCCCalibrationProvider provider, int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity");
+        this.provider = provider;
+        this.capacity = capacity;
+    }
+
+    @Override
+    public ReconstructionParameters getParameters(int run) throws IOException {
+        int slot = run & (HINTS - 1);
+        Entry entry = hints.get(slot);
+        if (entry == null || entry.run != run || entry.evicted) {
+            entry = lookup(run);
+            hints.lazySet(slot, entry);
+        }
+        long now = clock.get();
+        if (entry.lastUsed != now)
+            entry.lastUsed = now;
+
+        try {
+            return entry.load.get();
+        } catch (ExecutionException e) {
+            // Forget the failure so that a later call tries again
+            if (entries.remove(run, entry))
+                entry.evicted = true;
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while loading run " + run, e);
+        }
+    }
+
+    /**
+     * Returns the entry of a run from the map, loading the run if it is
+     * missing.
+     * @param run the run number
+     * @return the entry, whose load is done unless another thread runs it
+     */
+    private Entry lookup(final int run) {
+        Entry entry = entries.get(run);
+        if (entry == null) {
+            FutureTask<ReconstructionParameters> load = new FutureTask<ReconstructionParameters>(
+                new Callable<ReconstructionParameters>() {
+                    @Override
+                    public ReconstructionParameters call() throws IOException {
+                        return provider.getParameters(run);
+                    }
+                });
+            Entry created = new Entry(run, load, clock.incrementAndGet());
+            entry = entries.putIfAbsent(run, created);
+            if (entry == null) {
+                entry = created;
+                load.run();
+                created.lastUsed = clock.incrementAndGet();
+                evict();
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Returns the number of runs currently cached.
+     * @return the number of runs
+     */
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * Evicts the least recently used runs until the cache is within capacity.
+     * Only called after a miss, so hits never pay for the scan.
+     */
+    private void evict() {
+        while (entries.size() > capacity) {
+            Map.Entry<Integer, Entry> oldest = null;
+            for (Map.Entry<Integer, Entry> candidate : entries.entrySet()) {
+                if (oldest == null || candidate.getValue().lastUsed < oldest.getValue().lastUsed)
+                    oldest = candidate;
+            }
+            if (oldest == null)
+                return;
+            if (entries.remove(oldest.getKey(), oldest.getValue()))
+                oldest.getValue().evicted = true;
+        }
+    }
+}
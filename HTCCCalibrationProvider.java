@@ -0,0 +1,19 @@
+package org.jlab.rec.htcc;
+
+import java.io.IOException;
+
+/**
+ * Source of the HTCC reconstruction parameters of each run.
+ * <p>
+ * Implementations must be safe to call from several threads at once.
+ */
+interface HTCCCalibrationProvider {
+
+    /**
+     * Returns the parameters of the given run.
+     * @param run the run number
+     * @return the parameter snapshot of the run
+     * @throws IOException if the parameters cannot be read
+     */
+    ReconstructionParameters getParameters(int run) throws IOException;
+}
@@ -0,0 +1,146 @@
+package org.jlab.rec.htcc;
+
+/**
+ * Immutable per-channel geometry and calibration of the HTCC.
+ * <p>
+ * A channel is one mirror, numbered <code>itheta*NUM_IPHI + iphi</code>, so
+ * each sector, half sector and ring has its own channel.  The
+ * table holds everything the clustering needs per hit, so the hot path reads
+ * array entries instead of recomputing them from the reconstruction
+ * parameters, including the cosine and sine of the phi values used for the
+ * cluster centroid.
+ */
+final class HTCCChannelTable {
+    // Number of theta rings, phi segments and channels of the detector
+    static final int NUM_ITHETA = 4;
+    static final int NUM_IPHI = 12;
+    static final int NUM_CHANNELS = NUM_ITHETA*NUM_IPHI;
+
+    // For each channel, the mask of the channels that are close enough in
+    // space to join the same cluster
+    private static final long[] NEIGHBOR_MASKS = new long[NUM_CHANNELS];
+    static {
+        for (int channel=0; channel<NUM_CHANNELS; ++channel) {
+            int ithetaCurr = channel / NUM_IPHI;
+            int iphiCurr   = channel % NUM_IPHI;
+            for (int test=0; test<NUM_CHANNELS; ++test) {
+                int ithetaTest = test / NUM_IPHI;
+                int iphiTest   = test % NUM_IPHI;
+                // Same distance rule as HTCCReconstruction.growCluster,
+                // including the phi wrap
+                int ithetaDiff = Math.abs(ithetaTest - ithetaCurr);
+                int iphiDiff = Math.min((12+iphiTest-iphiCurr)%12, (12+iphiCurr-iphiTest)%12);
+                if ((ithetaDiff == 1 || iphiDiff == 1) && (ithetaDiff + iphiDiff <= 2))
+                    NEIGHBOR_MASKS[channel] |= 1L << test;
+            }
+        }
+    }
+
+    private final double[] theta;
+    private final double[] phi;
+    private final double[] dtheta;
+    private final double[] dphi;
+    private final double[] t0;
+    // cos and sin of phi + dphi*sign for sign = -1, 0, +1, three per channel
+    private final double[] cosPhi;
+    private final double[] sinPhi;
+
+    /**
+     * Builds the table from the given reconstruction parameters.
+     * @param parameters the reconstruction parameters
+     */
+    HTCCChannelTable(ReconstructionParameters parameters) {
+        theta  = new double[NUM_CHANNELS];
+        phi    = new double[NUM_CHANNELS];
+        dtheta = new double[NUM_CHANNELS];
+        dphi   = new double[NUM_CHANNELS];
+        t0     = new double[NUM_CHANNELS];
+        cosPhi = new double[3*NUM_CHANNELS];
+        sinPhi = new double[3*NUM_CHANNELS];
+        for (int channel=0; channel<NUM_CHANNELS; ++channel) {
+            int itheta = itheta(channel);
+            int iphi   = iphi(channel);
+            theta[channel]  = parameters.theta0[itheta];
+            phi[channel]    = parameters.phi0 + 2.0*parameters.dphi0*iphi;
+            // Errors are forced to be positive, as in HTCCCluster.addHit
+            dtheta[channel] = Math.abs(parameters.thetaRange);
+            dphi[channel]   = Math.abs(parameters.phiRange[itheta]);
+            t0[channel]     = parameters.channelT0[channel];
+            for (int sign=-1; sign<=1; ++sign) {
+                double shifted = phi[channel] + dphi[channel]*(double) sign;
+                cosPhi[3*channel + sign + 1] = Math.cos(shifted);
+                sinPhi[3*channel + sign + 1] = Math.sin(shifted);
+            }
+        }
+    }
+
+    /**
+     * Returns the channel of the given detector indices, or -1 if they lie
+     * outside the detector.
+     * @param itheta the theta index (0-3)
+     * @param iphi the phi index (0-11)
+     * @return the channel or -1
+     */
+    static int channel(int itheta, int iphi) {
+        if (itheta < 0 || itheta >= NUM_ITHETA || iphi < 0 || iphi >= NUM_IPHI)
+            return -1;
+        return itheta*NUM_IPHI + iphi;
+    }
+
+    static int itheta(int channel) {
+        return channel / NUM_IPHI;
+    }
+
+    static int iphi(int channel) {
+        return channel % NUM_IPHI;
+    }
+
+    /**
+     * Returns the mask of the channels neighboring the given channel.
+     * @param channel the channel
+     * @return the neighbor mask
+     */
+    static long neighbors(int channel) {
+        return NEIGHBOR_MASKS[channel];
+    }
+
+    double theta(int channel) {
+        return theta[channel];
+    }
+
+    double phi(int channel) {
+        return phi[channel];
+    }
+
+    double dtheta(int channel) {
+        return dtheta[channel];
+    }
+
+    double dphi(int channel) {
+        return dphi[channel];
+    }
+
+    double t0(int channel) {
+        return t0[channel];
+    }
+
+    /**
+     * Returns cos(phi + dphi*sign) of the given channel.
+     * @param channel the channel
+     * @param sign -1, 0 or +1
+     * @return the cosine
+     */
+    double cosPhi(int channel, int sign) {
+        return cosPhi[3*channel + sign + 1];
+    }
+
+    /**
+     * Returns sin(phi + dphi*sign) of the given channel.
+     * @param channel the channel
+     * @param sign -1, 0 or +1
+     * @return the sine
+     */
+    double sinPhi(int channel, int sign) {
+        return sinPhi[3*channel + sign + 1];
+    }
+}
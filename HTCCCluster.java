@@ -1,9 +1,6 @@
 package org.jlab.rec.htcc;
 
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
+import java.util.Arrays;
 
 /**
  *
@@ -30,18 +27,50 @@ class HTCCCluster {
     private double dphi;
     private double time;
 
-    private final List<Integer> hitnphe;
-    private final List<Integer> hititheta;
-    private final List<Integer> hitiphi;
-    private final Set<Integer> setitheta;
-    private final Set<Integer> setiphi;
-    private final List<Double> hittheta;
-    private final List<Double> hitphi;
-    private final List<Double> hitdtheta;
-    private final List<Double> hitdphi;
-    private final List<Double> hittime;
+    // Running photoelectron weighted time sum, see addHit()
+    private double timeSum;
+    // Whether theta, phi, dtheta and dphi reflect every hit, see calcAngles()
+    private boolean anglesValid;
+
+    // Per-hit columns, the first nhitclust entries are in use
+    private int[] hitnphe;
+    private int[] hititheta;
+    private int[] hitiphi;
+    private int[] hitchannel;
+    private double[] hittheta;
+    private double[] hitphi;
+    private double[] hitdtheta;
+    private double[] hitdphi;
+    private double[] hittime;
+
+    // Lookup table for hits added by channel, see addHit(HTCCChannelTable, ...)
+    private HTCCChannelTable channels;
+
+    // Occupied theta (4 bit) and phi (12 bit) indices
+    private int maskitheta;
+    private int maskiphi;
+
+    private static final int INITIAL_CAPACITY = 4;
 
     HTCCCluster() {
+        hitnphe = new int[INITIAL_CAPACITY];
+        hititheta = new int[INITIAL_CAPACITY];
+        hitiphi = new int[INITIAL_CAPACITY];
+        hitchannel = new int[INITIAL_CAPACITY];
+        hittheta = new double[INITIAL_CAPACITY];
+        hitphi = new double[INITIAL_CAPACITY];
+        hitdtheta = new double[INITIAL_CAPACITY];
+        hitdphi = new double[INITIAL_CAPACITY];
+        hittime = new double[INITIAL_CAPACITY];
+
+        clear();
+    }
+
+    /**
+     * Removes every hit, keeping the allocated capacity so that the cluster
+     * can be reused.
+     */
+    void clear() {
         nhitclust = 0;
         nthetaclust = 0;
         nphiclust = 0;
@@ -59,16 +88,28 @@ class HTCCCluster {
         dphi = 0.0;
         time = 0.0;
 
-        hitnphe = new ArrayList<Integer>();
-        hititheta = new ArrayList<Integer>();
-        hitiphi = new ArrayList<Integer>();
-        hittheta = new ArrayList<Double>();
-        hitphi = new ArrayList<Double>();
-        hitdtheta = new ArrayList<Double>();
-        hitdphi = new ArrayList<Double>();
-        hittime = new ArrayList<Double>();
-        setitheta = new HashSet<Integer>();
-        setiphi = new HashSet<Integer>();
+        timeSum = 0.0;
+        anglesValid = true;
+
+        channels = null;
+        maskitheta = 0;
+        maskiphi = 0;
+    }
+
+    /**
+     * Doubles the capacity of the per-hit columns.
+     */
+    private void grow() {
+        int capacity = 2 * hitnphe.length;
+        hitnphe = Arrays.copyOf(hitnphe, capacity);
+        hititheta = Arrays.copyOf(hititheta, capacity);
+        hitiphi = Arrays.copyOf(hitiphi, capacity);
+        hitchannel = Arrays.copyOf(hitchannel, capacity);
+        hittheta = Arrays.copyOf(hittheta, capacity);
+        hitphi = Arrays.copyOf(hitphi, capacity);
+        hitdtheta = Arrays.copyOf(hitdtheta, capacity);
+        hitdphi = Arrays.copyOf(hitdphi, capacity);
+        hittime = Arrays.copyOf(hittime, capacity);
     }
 
     void addHit(int itheta, int iphi, int nphe, double time, double theta, double phi, double dtheta, double dphi) {
@@ -82,20 +123,115 @@ class HTCCCluster {
         if (!(0 <= nphe)) {
             throw new IllegalArgumentException("nphe");
         }
-        setitheta.add(itheta);
-        setiphi.add(iphi);
-        hititheta.add(itheta);
-        hitiphi.add(iphi);
-        hitnphe.add(nphe);
-        hittime.add(time);
-        hittheta.add(theta);
-        hitphi.add(phi);
-        hitdtheta.add(Math.abs(dtheta)); // force errors to be positive
-        hitdphi.add(Math.abs(dphi)); // force errors to be positive
+        if (nhitclust == hitnphe.length) {
+            grow();
+        }
+        int hit = nhitclust;
+        maskitheta |= 1 << itheta;
+        maskiphi |= 1 << iphi;
+        hititheta[hit] = itheta;
+        hitiphi[hit] = iphi;
+        hitchannel[hit] = -1;
+        hitnphe[hit] = nphe;
+        hittime[hit] = time;
+        hittheta[hit] = theta;
+        hitphi[hit] = phi;
+        hitdtheta[hit] = Math.abs(dtheta); // force errors to be positive
+        hitdphi[hit] = Math.abs(dphi); // force errors to be positive
+
+        // Update the running statistics.  Adding a hit is constant work; the
+        // angles are only needed once the cluster is complete and are
+        // recomputed on demand.
+        if (nhitclust == 0 || itheta > ithetamax) {
+            ithetamax = itheta;
+        }
+        if (nhitclust == 0 || itheta < ithetamin) {
+            ithetamin = itheta;
+        }
+        if (nhitclust == 0 || iphi > iphimax) {
+            iphimax = iphi;
+        }
+        if (nhitclust == 0 || iphi < iphimin) {
+            iphimin = iphi;
+        }
+        nhitclust++;
+        nphetot += nphe;
+        timeSum += time * nphe;
+        this.time = timeSum / nphetot; // weighted average
+        nthetaclust = Integer.bitCount(maskitheta);
+        nphiclust = Integer.bitCount(maskiphi);
+        anglesValid = false;
+    }
+
+    /**
+     * Adds the hit of a detector channel, taking its coordinates and alignment
+     * errors from the given table.  The centroid then uses the table's
+     * precomputed cosine and sine of phi for this hit.
+     * @param channels the channel table
+     * @param channel the channel of the hit
+     * @param nphe the number of photoelectrons
+     * @param time the hit time, corrected for the channel offset
+     */
+    void addHit(HTCCChannelTable channels, int channel, int nphe, double time) {
+        if (!(0 <= channel && channel < HTCCChannelTable.NUM_CHANNELS)) {
+            throw new IllegalArgumentException("channel");
+        }
+        addHit(HTCCChannelTable.itheta(channel), HTCCChannelTable.iphi(channel), nphe, time,
+               channels.theta(channel), channels.phi(channel), channels.dtheta(channel), channels.dphi(channel));
+        hitchannel[nhitclust - 1] = channel;
+        this.channels = channels;
+    }
+
+    /**
+     * Computes theta, phi, dtheta and dphi from the stored hits.  Gives the
+     * same values as <code>calcSums</code>, summing in the same order.
+     */
+    private void calcAngles() {
+        theta = 0.0;
+        dtheta = 0.0;
+        dphi = 0.0;
+        double thetaTemp = 0.0;
+        double phiTemp = 0.0;
+        double cosphi = 0.0;
+        double sinphi = 0.0;
+
+        for (int i = 0; i < nhitclust; i++) {
+            thetaTemp = +hittheta[i];
+            phiTemp = +hitphi[i];
+        }
+        thetaTemp /= nhitclust;
+        phiTemp /= nhitclust;
+
+        for (int i = 0; i < nhitclust; i++) {
+            theta += (hittheta[i] + hitdtheta[i]*Math.signum(hittheta[i] - thetaTemp))* hitnphe[i];
+
+            double sign = Math.signum(hitphi[i] - phiTemp);
+            int channel = hitchannel[i];
+            if (channel >= 0 && sign == sign) {
+                cosphi += channels.cosPhi(channel, (int) sign) * hitnphe[i];
+                sinphi += channels.sinPhi(channel, (int) sign) * hitnphe[i];
+            } else {
+                cosphi += Math.cos(hitphi[i] + hitdphi[i]*sign) * hitnphe[i];
+                sinphi += Math.sin(hitphi[i] + hitdphi[i]*sign) * hitnphe[i];
+            }
+        }
+        theta /= nphetot; //include npe weight
 
-        calcSums();
+        cosphi /= nphetot;
+        sinphi /= nphetot;
+        phi = Math.atan2(sinphi, cosphi);
+
+        dtheta = Math.pow(dtheta, -0.5);
+        dphi = Math.pow(dphi, -0.5);
+
+        anglesValid = true;
     }
 
+    /**
+     * Recomputes every cluster statistic from the stored hits.  This is the
+     * original full recomputation and is kept as the reference for the
+     * incremental update done by <code>addHit</code>.
+     */
     void calcSums() {
         time = 0.0;
         theta = 0.0;
@@ -107,17 +243,12 @@ class HTCCCluster {
 
         nphetot = 0;
 
-        nhitclust = hitnphe.size();
-
         double cosphi = 0.0;
         double sinphi = 0.0;
-       
 
-        System.out.printf("n hits in da cluster " + nhitclust + "\n");
         for (int i = 0; i < nhitclust; i++) {
-        thetaTemp = +hittheta.get(i);
-        phiTemp = +hitphi.get(i);
-        System.out.printf("theta temp calc" + i + " : " + thetaTemp + "\n");
+        thetaTemp = +hittheta[i];
+        phiTemp = +hitphi[i];
 
         }
         thetaTemp /= nhitclust;
@@ -125,57 +256,33 @@ class HTCCCluster {
         
         for (int i = 0; i < nhitclust; i++) {
 
-            if (i == 0 || hititheta.get(i) > ithetamax) {
-                ithetamax = hititheta.get(i);
+            if (i == 0 || hititheta[i] > ithetamax) {
+                ithetamax = hititheta[i];
             }
-            if (i == 0 || hititheta.get(i) < ithetamin) {
-                ithetamin = hititheta.get(i);
+            if (i == 0 || hititheta[i] < ithetamin) {
+                ithetamin = hititheta[i];
             }
-            if (i == 0 || hitiphi.get(i) > iphimax) {
-                iphimax = hitiphi.get(i);
+            if (i == 0 || hitiphi[i] > iphimax) {
+                iphimax = hitiphi[i];
             }
-            if (i == 0 || hitiphi.get(i) < iphimin) {
-                iphimin = hitiphi.get(i);
+            if (i == 0 || hitiphi[i] < iphimin) {
+                iphimin = hitiphi[i];
             }
  
-            nphetot += hitnphe.get(i);
-            
-            time += hittime.get(i) * hitnphe.get(i);
-            System.out.printf("hittime.get(i) " + hittime.get(i) + "\n");
+            nphetot += hitnphe[i];
             
-            System.out.printf("npe " + i + " : " + hitnphe.get(i) + "\n");
-            System.out.printf("sum npe " + i + " : " + nphetot + "\n");
-            theta += (hittheta.get(i) + hitdtheta.get(i)*Math.signum(hittheta.get(i) - thetaTemp))* hitnphe.get(i);
-            System.out.printf("theta temp " + i + " : " + thetaTemp + "\n");
-
-            System.out.printf("theta " + i + " : " + hittheta.get(i) + "\n");
-            System.out.printf("hititheta  " + i + " : " + hititheta.get(i) + "\n");
-
-            System.out.printf("dtheta " + hitdtheta.get(i) + "\n");
-            System.out.printf("coeff theta" + i + " : " + Math.signum(hittheta.get(i) - thetaTemp)+ "\n");
-            System.out.printf("sum theta " + i + " : " + theta + "\n");
-
-            cosphi += Math.cos(hitphi.get(i) + hitdphi.get(i)*Math.signum(hitphi.get(i) - phiTemp)) * hitnphe.get(i);
-            sinphi += Math.sin(hitphi.get(i) + hitdphi.get(i)*Math.signum(hitphi.get(i) - phiTemp)) * hitnphe.get(i);
-
-            System.out.printf("phi " + i + " : " + hitphi.get(i) + "\n");
-            System.out.printf("dphi " + hitdphi.get(i) + "\n");
-            System.out.printf("coeff phi" + i + " : " + Math.signum(hitphi.get(i) - phiTemp)+ "\n");
-            System.out.printf("hitiphi  " + i + " : " + hitiphi.get(i) + "\n");
-            System.out.printf("phi temp " + i + " : " + phiTemp + "\n");
-
-            System.out.printf("sum cosphi " + i + " : " + cosphi + "\n");
-
+            time += hittime[i] * hitnphe[i];
             
-   
+            theta += (hittheta[i] + hitdtheta[i]*Math.signum(hittheta[i] - thetaTemp))* hitnphe[i];
 
-        
+            cosphi += Math.cos(hitphi[i] + hitdphi[i]*Math.signum(hitphi[i] - phiTemp)) * hitnphe[i];
+            sinphi += Math.sin(hitphi[i] + hitdphi[i]*Math.signum(hitphi[i] - phiTemp)) * hitnphe[i];
         }
+        timeSum = time;
         time /= nphetot; // weighted average
 
         //      theta /= dtheta; //include dtheta weight
         theta /= nphetot; //include npe weight
-        System.out.printf("res theta " + theta + "\n");
 
         //       cosphi /= dphi;
         //       sinphi /= dphi;
@@ -186,8 +293,10 @@ class HTCCCluster {
         dtheta = Math.pow(dtheta, -0.5);
         dphi = Math.pow(dphi, -0.5);
 
-        nthetaclust = setitheta.size();
-        nphiclust = setiphi.size();
+        nthetaclust = Integer.bitCount(maskitheta);
+        nphiclust = Integer.bitCount(maskiphi);
+
+        anglesValid = true;
     }
 
     public int getNPheTot() {
@@ -227,28 +336,44 @@ class HTCCCluster {
     }
 
     public double getTheta() {
+        if (!anglesValid) {
+            calcAngles();
+        }
         return theta;
     }
 
     public double getPhi() {
+        if (!anglesValid) {
+            calcAngles();
+        }
         return phi;
     }
 
     public double getDTheta() {
+        if (!anglesValid) {
+            calcAngles();
+        }
         return dtheta;
     }
    
 
     public double getDPhi() {
+        if (!anglesValid) {
+            calcAngles();
+        }
         return dphi;
     }
 
     public int getHitITheta(int hit) {
-        return hititheta.get(hit);
+        return hititheta[hit];
     }
 
     public int getHitIPhi(int hit) {
-        return hitiphi.get(hit);
+        return hitiphi[hit];
+    }
+
+    public int getHitChannel(int hit) {
+        return hitchannel[hit] >= 0 ? hitchannel[hit] : HTCCChannelTable.channel(hititheta[hit], hitiphi[hit]);
     }
 
 }
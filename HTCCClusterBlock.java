@@ -0,0 +1,84 @@
+package org.jlab.rec.htcc;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Clusters of many events, the output of
+ * <code>HTCCReconstruction.processBatch</code>.
+ * <p>
+ * The clusters of all events are stored in one <code>HTCCClusterColumns</code>;
+ * those of event <i>e</i> are entries <code>getFirstCluster(e)</code> to
+ * <code>getFirstCluster(e) + getNumClusters(e) - 1</code>.  The buffers only
+ * grow, so a block reused for every batch allocates nothing in the steady
+ * state.
+ */
+public final class HTCCClusterBlock {
+    private final HTCCClusterColumns clusters = new HTCCClusterColumns();
+    private int[] eventOffsets = new int[1025];
+    private int numEvents;
+
+    /**
+     * Removes every event and makes room for the given number of events.
+     * @param capacity the number of events expected
+     * @param parametersVersion the version of the parameters of the batch
+     */
+    void clear(int capacity, long parametersVersion) {
+        if (capacity + 1 > eventOffsets.length)
+            eventOffsets = new int[Math.max(capacity + 1, 2*eventOffsets.length)];
+        numEvents = 0;
+        eventOffsets[0] = 0;
+        clusters.clear(parametersVersion);
+    }
+
+    /**
+     * Appends the clusters of the next event.
+     * @param found the clusters of the event
+     */
+    void addEvent(List<HTCCCluster> found) {
+        if (numEvents + 1 == eventOffsets.length)
+            eventOffsets = Arrays.copyOf(eventOffsets, 2*eventOffsets.length);
+        for (int i=0; i<found.size(); ++i)
+            clusters.add(found.get(i));
+        eventOffsets[++numEvents] = clusters.size();
+    }
+
+    public int getNumEvents() {
+        return numEvents;
+    }
+
+    /**
+     * Returns the clusters of all events.
+     * @return the cluster columns
+     */
+    public HTCCClusterColumns getClusters() {
+        return clusters;
+    }
+
+    /**
+     * Returns the index in <code>getClusters()</code> of the first cluster of
+     * an event.
+     * @param event the event
+     * @return the index of its first cluster
+     */
+    public int getFirstCluster(int event) {
+        return eventOffsets[event];
+    }
+
+    /**
+     * Returns the number of clusters of an event.
+     * @param event the event
+     * @return the number of clusters
+     */
+    public int getNumClusters(int event) {
+        return eventOffsets[event+1] - eventOffsets[event];
+    }
+
+    /**
+     * Returns the version of the parameters that built the clusters.
+     * @return the parameter version
+     */
+    public long getParametersVersion() {
+        return clusters.getParametersVersion();
+    }
+}
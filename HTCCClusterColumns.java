@@ -0,0 +1,173 @@
+package org.jlab.rec.htcc;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Clusters of one event stored as columns, with one entry per cluster and the
+ * same quantities as the HTCCRec::clusters bank.
+ * <p>
+ * The columns only grow, so an instance reused for every event allocates
+ * nothing once it has held the largest event.
+ */
+public final class HTCCClusterColumns {
+    private static final int INITIAL_CAPACITY = 8;
+
+    private int size;
+    private long parametersVersion;
+
+    int[] nhits = new int[INITIAL_CAPACITY];
+    int[] ntheta = new int[INITIAL_CAPACITY];
+    int[] nphi = new int[INITIAL_CAPACITY];
+    int[] mintheta = new int[INITIAL_CAPACITY];
+    int[] maxtheta = new int[INITIAL_CAPACITY];
+    int[] minphi = new int[INITIAL_CAPACITY];
+    int[] maxphi = new int[INITIAL_CAPACITY];
+    int[] nphe = new int[INITIAL_CAPACITY];
+    double[] time = new double[INITIAL_CAPACITY];
+    double[] theta = new double[INITIAL_CAPACITY];
+    double[] phi = new double[INITIAL_CAPACITY];
+    double[] dtheta = new double[INITIAL_CAPACITY];
+    double[] dphi = new double[INITIAL_CAPACITY];
+
+    /**
+     * Replaces the content with the given clusters.
+     * @param clusters the clusters of an event
+     * @param parametersVersion the version of the parameters that built them
+     */
+    void fill(List<HTCCCluster> clusters, long parametersVersion) {
+        size = 0;
+        this.parametersVersion = parametersVersion;
+        ensureCapacity(clusters.size());
+        for (int i=0; i<clusters.size(); ++i)
+            add(clusters.get(i));
+    }
+
+    /**
+     * Appends one cluster.
+     * @param cluster the cluster
+     */
+    void add(HTCCCluster cluster) {
+        ensureCapacity(size + 1);
+        int i = size++;
+        nhits[i]    = cluster.getNHitClust();
+        ntheta[i]   = cluster.getNThetaClust();
+        nphi[i]     = cluster.getNPhiClust();
+        mintheta[i] = cluster.getIThetaMin();
+        maxtheta[i] = cluster.getIThetaMax();
+        minphi[i]   = cluster.getIPhiMin();
+        maxphi[i]   = cluster.getIPhiMax();
+        nphe[i]     = cluster.getNPheTot();
+        time[i]     = cluster.getTime();
+        theta[i]    = cluster.getTheta();
+        phi[i]      = cluster.getPhi();
+        dtheta[i]   = cluster.getDTheta();
+        dphi[i]     = cluster.getDPhi();
+    }
+
+    /**
+     * Removes every cluster.
+     * @param parametersVersion the version of the parameters of the clusters
+     *        to come
+     */
+    void clear(long parametersVersion) {
+        size = 0;
+        this.parametersVersion = parametersVersion;
+    }
+
+    /**
+     * Sets the number of clusters after the columns were filled in place.
+     * @param size the number of clusters, at most the capacity
+     */
+    void setSize(int size) {
+        this.size = size;
+    }
+
+    void ensureCapacity(int capacity) {
+        if (capacity <= nhits.length)
+            return;
+        int length = Math.max(capacity, 2*nhits.length);
+        nhits    = Arrays.copyOf(nhits, length);
+        ntheta   = Arrays.copyOf(ntheta, length);
+        nphi     = Arrays.copyOf(nphi, length);
+        mintheta = Arrays.copyOf(mintheta, length);
+        maxtheta = Arrays.copyOf(maxtheta, length);
+        minphi   = Arrays.copyOf(minphi, length);
+        maxphi   = Arrays.copyOf(maxphi, length);
+        nphe     = Arrays.copyOf(nphe, length);
+        time     = Arrays.copyOf(time, length);
+        theta    = Arrays.copyOf(theta, length);
+        phi      = Arrays.copyOf(phi, length);
+        dtheta   = Arrays.copyOf(dtheta, length);
+        dphi     = Arrays.copyOf(dphi, length);
+    }
+
+    /**
+     * Returns the number of clusters.
+     * @return the number of clusters
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the version of the parameters that built the clusters, see
+     * <code>HTCCEventContext.getParametersVersion()</code>.
+     * @return the parameter version
+     */
+    public long getParametersVersion() {
+        return parametersVersion;
+    }
+
+    public int getNHitClust(int cluster) {
+        return nhits[cluster];
+    }
+
+    public int getNThetaClust(int cluster) {
+        return ntheta[cluster];
+    }
+
+    public int getNPhiClust(int cluster) {
+        return nphi[cluster];
+    }
+
+    public int getIThetaMin(int cluster) {
+        return mintheta[cluster];
+    }
+
+    public int getIThetaMax(int cluster) {
+        return maxtheta[cluster];
+    }
+
+    public int getIPhiMin(int cluster) {
+        return minphi[cluster];
+    }
+
+    public int getIPhiMax(int cluster) {
+        return maxphi[cluster];
+    }
+
+    public int getNPheTot(int cluster) {
+        return nphe[cluster];
+    }
+
+    public double getTime(int cluster) {
+        return time[cluster];
+    }
+
+    public double getTheta(int cluster) {
+        return theta[cluster];
+    }
+
+    public double getPhi(int cluster) {
+        return phi[cluster];
+    }
+
+    public double getDTheta(int cluster) {
+        return dtheta[cluster];
+    }
+
+    public double getDPhi(int cluster) {
+        return dphi[cluster];
+    }
+}
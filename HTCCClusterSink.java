@@ -0,0 +1,14 @@
+package org.jlab.rec.htcc;
+
+/**
+ * Receives the clusters of each event.
+ */
+public interface HTCCClusterSink {
+
+    /**
+     * Takes the clusters of one event.  The columns are reused for the next
+     * event, so a sink must copy whatever it keeps.
+     * @param clusters the clusters of the event
+     */
+    void write(HTCCClusterColumns clusters);
+}
@@ -0,0 +1,444 @@
+package org.jlab.rec.htcc;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the HTCCRec::clusters of many events to an EVIO file on a writer
+ * thread of its own, so that the reconstruction threads never build or
+ * serialize banks.
+ * <p>
+ * The clusters handed to <code>write</code> or <code>handle</code> are copied
+ * into the columns of the buffer being filled.  A full buffer goes to the
+ * writer thread, which serializes all its events into one EVIO version 4
+ * block and writes it with a single call; meanwhile the next buffer is
+ * filled.  There are <code>numBuffers</code> buffers in all, so memory stays
+ * bounded: when the writer falls behind, the thread handing over clusters
+ * waits for a buffer.  Blocks are written in the order the events were
+ * handed over.  <code>flush</code> waits until every event handed over is
+ * written, and <code>close</code> also forces the file to the storage
+ * device.
+ * <p>
+ * The first error of the writer thread stops the output: later buffers are
+ * dropped rather than written after a gap, the next <code>write</code> or
+ * <code>handle</code> throws it wrapped in a <code>RuntimeException</code>,
+ * and <code>flush</code> and <code>close</code> throw it as is.
+ * <p>
+ * Each output event is a bank of banks holding one HTCCRec::clusters bank of
+ * banks with the tag given to the constructor.  It is written even when an
+ * event has no clusters, so every input event can be found again.  Its
+ * children carry the same tag: num 0 holds the index of the input event and
+ * num 14 the version of the reconstruction parameters that clustered it,
+ * each as one 64 bit integer, and nums 1 to 13 hold the columns nhits, ntheta,
+ * nphi, mintheta, maxtheta, minphi, maxphi and nphe as 32 bit integers and
+ * time, theta, phi, dtheta and dphi as 64 bit floats, one entry per
+ * cluster.  The file ends with an empty block flagged as the last one.
+ * <p>
+ * Clusters must be handed over by one thread at a time, such as the writer
+ * thread of <code>HTCCParallelDriver</code>.
+ */
+public final class HTCCClusterWriter implements HTCCClusterSink, HTCCParallelDriver.BatchHandler, Closeable {
+    /** Default tag of the HTCCRec::clusters bank and its columns. */
+    public static final int DEFAULT_TAG = 630;
+
+    // Tag of the event banks
+    private static final int EVENT_TAG = 1;
+
+    private static final int BLOCK_MAGIC = 0xc0da0100;
+    private static final int BLOCK_HEADER_WORDS = 8;
+    private static final int VERSION = 4;
+    private static final int LAST_BLOCK_BIT = 1 << 9;
+
+    // EVIO content types
+    private static final int TYPE_DOUBLE64 = 0x8;
+    private static final int TYPE_ULONG64 = 0xa;
+    private static final int TYPE_INT32 = 0xb;
+    private static final int TYPE_ALSOBANK = 0x10;
+
+    private static final int NUM_INT_COLUMNS = 8;
+    private static final int NUM_DOUBLE_COLUMNS = 5;
+    // Num of the bank holding the parameters version
+    private static final int VERSION_NUM = 14;
+
+    /**
+     * Clusters of consecutive events, filled by the calling thread and
+     * serialized by the writer thread.
+     */
+    private static final class Buffer {
+        final HTCCClusterColumns clusters = new HTCCClusterColumns();
+        final int[] eventOffsets;
+        final long[] eventIndexes;
+        final long[] parametersVersions;
+        int numEvents;
+
+        Buffer(int eventsPerBuffer) {
+            eventOffsets = new int[eventsPerBuffer + 1];
+            eventIndexes = new long[eventsPerBuffer];
+            parametersVersions = new long[eventsPerBuffer];
+        }
+
+        void clear() {
+            numEvents = 0;
+            clusters.clear(0L);
+        }
+    }
+
+    // Marks the end of the output for the writer thread
+    private static final Buffer END_OF_OUTPUT = new Buffer(0);
+
+    private final FileChannel channel;
+    private final int tag;
+    private final int eventsPerBuffer;
+    private final BlockingQueue<Buffer> free;
+    private final BlockingQueue<Buffer> full;
+    private final Thread thread;
+
+    // Buffer being filled by the calling thread
+    private Buffer filling;
+    private long nextEventIndex;
+    private boolean closed;
+
+    // Guarded by this: buffers handed to the writer thread and buffers
+    // written
+    private long submitted;
+    private long written;
+    // First failure of the writer thread, set under this; volatile so that
+    // every event handed over can check it without locking
+    private volatile IOException failure;
+
+    // Used by the writer thread only
+    private ByteBuffer block = ByteBuffer.allocate(1 << 20).order(ByteOrder.BIG_ENDIAN);
+    private int blockNumber = 1;
+    private volatile long eventsWritten;
+    private volatile long bytesWritten;
+
+    /**
+     * Creates the output file, replacing any file of the same name, with the
+     * default bank tag.
+     * @param file the output file
+     * @param eventsPerBuffer the number of events of each written block
+     * @param numBuffers the number of buffers, at least 2
+     * @throws IOException if the file cannot be created
+     */
+    public HTCCClusterWriter(File file, int eventsPerBuffer, int numBuffers) throws IOException {
+        this(file, eventsPerBuffer, numBuffers, DEFAULT_TAG);
+    }
+
+    /**
+     * Creates the output file, replacing any file of the same name.
+     * @param file the output file
+     * @param eventsPerBuffer the number of events of each written block
+     * @param numBuffers the number of buffers, at least 2
+     * @param tag the tag of the HTCCRec::clusters bank (1-65535)
+     * @throws IOException if the file cannot be created
+     */
+    public HTCCClusterWriter(File file, int eventsPerBuffer, int numBuffers, int tag) throws IOException {
+        if (eventsPerBuffer < 1)
+            throw new IllegalArgumentException("eventsPerBuffer");
+        if (numBuffers < 2)
+            throw new IllegalArgumentException("numBuffers");
+        if (tag < 1 || tag > 0xffff)
+            throw new IllegalArgumentException("tag");
+        this.tag = tag;
+        this.eventsPerBuffer = eventsPerBuffer;
+        this.free = new ArrayBlockingQueue<Buffer>(numBuffers);
+        this.full = new ArrayBlockingQueue<Buffer>(numBuffers + 1);
+        for (int b=1; b<numBuffers; ++b)
+            free.add(new Buffer(eventsPerBuffer));
+        this.filling = new Buffer(eventsPerBuffer);
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "htcc-output");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Appends the clusters of the next event, whose index is one more than
+     * that of the previous event.
+     * @param clusters the clusters of the event
+     * @throws RuntimeException if the writer thread failed
+     */
+    @Override
+    public void write(HTCCClusterColumns clusters) {
+        addEvent(clusters, 0, clusters.size(), nextEventIndex, clusters.getParametersVersion());
+    }
+
+    /**
+     * Appends the clusters of a batch of events.
+     * @param clusters the clusters of the events
+     * @param eventIndexes the index in the input of each event
+     * @throws RuntimeException if the writer thread failed
+     */
+    @Override
+    public void handle(HTCCClusterBlock clusters, long[] eventIndexes) {
+        for (int event=0; event<clusters.getNumEvents(); ++event) {
+            addEvent(clusters.getClusters(), clusters.getFirstCluster(event),
+                     clusters.getNumClusters(event), eventIndexes[event], clusters.getParametersVersion());
+        }
+    }
+
+    /**
+     * Hands the events appended so far to the writer thread and waits until
+     * they are written.
+     * @throws IOException if the writer thread failed
+     */
+    public void flush() throws IOException {
+        if (closed)
+            throw new IllegalStateException("closed");
+        try {
+            if (filling.numEvents > 0)
+                handOver();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while flushing the HTCC output");
+        }
+        awaitWritten();
+    }
+
+    /**
+     * Writes every event appended so far, ends the file, forces it to the
+     * storage device and closes it.
+     * @throws IOException if writing failed, now or before
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            if (filling.numEvents > 0)
+                handOver();
+            awaitWritten();
+            putFull(END_OF_OUTPUT);
+            thread.join();
+            block.clear();
+            putBlockHeader(BLOCK_HEADER_WORDS, 0, LAST_BLOCK_BIT);
+            block.flip();
+            writeBlock();
+            channel.force(true);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while closing the HTCC output");
+        } finally {
+            thread.interrupt();
+            channel.close();
+        }
+    }
+
+    /**
+     * Returns the number of events written to the file so far.
+     * @return the number of events
+     */
+    public long getEventsWritten() {
+        return eventsWritten;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    private void addEvent(HTCCClusterColumns clusters, int first, int count, long eventIndex,
+                          long parametersVersion) {
+        if (closed)
+            throw new IllegalStateException("closed");
+        if (failure != null)
+            throw new RuntimeException("HTCC output failed", failure);
+        Buffer buffer = filling;
+        HTCCClusterColumns columns = buffer.clusters;
+        int size = columns.size();
+        columns.ensureCapacity(size + count);
+        System.arraycopy(clusters.nhits, first, columns.nhits, size, count);
+        System.arraycopy(clusters.ntheta, first, columns.ntheta, size, count);
+        System.arraycopy(clusters.nphi, first, columns.nphi, size, count);
+        System.arraycopy(clusters.mintheta, first, columns.mintheta, size, count);
+        System.arraycopy(clusters.maxtheta, first, columns.maxtheta, size, count);
+        System.arraycopy(clusters.minphi, first, columns.minphi, size, count);
+        System.arraycopy(clusters.maxphi, first, columns.maxphi, size, count);
+        System.arraycopy(clusters.nphe, first, columns.nphe, size, count);
+        System.arraycopy(clusters.time, first, columns.time, size, count);
+        System.arraycopy(clusters.theta, first, columns.theta, size, count);
+        System.arraycopy(clusters.phi, first, columns.phi, size, count);
+        System.arraycopy(clusters.dtheta, first, columns.dtheta, size, count);
+        System.arraycopy(clusters.dphi, first, columns.dphi, size, count);
+        columns.setSize(size + count);
+        buffer.eventOffsets[buffer.numEvents] = size;
+        buffer.parametersVersions[buffer.numEvents] = parametersVersion;
+        buffer.eventIndexes[buffer.numEvents++] = eventIndex;
+        buffer.eventOffsets[buffer.numEvents] = size + count;
+        nextEventIndex = eventIndex + 1;
+        if (buffer.numEvents == eventsPerBuffer)
+            submit();
+    }
+
+    /**
+     * Hands the buffer being filled to the writer thread, see
+     * <code>handOver</code>.
+     * @throws RuntimeException if the writer thread failed
+     */
+    private void submit() {
+        try {
+            handOver();
+        } catch (IOException e) {
+            throw new RuntimeException("HTCC output failed", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted while handing over HTCC output", e);
+        }
+    }
+
+    /**
+     * Hands the buffer being filled to the writer thread and takes a free
+     * one, waiting while there is none.
+     * @throws IOException the first failure of the writer thread
+     */
+    private void handOver() throws IOException, InterruptedException {
+        synchronized (this) {
+            if (failure != null)
+                throw failure;
+            submitted++;
+        }
+        putFull(filling);
+        Buffer next;
+        while ((next = free.poll(100, TimeUnit.MILLISECONDS)) == null) {
+            if (failure != null)
+                throw failure;
+        }
+        next.clear();
+        filling = next;
+    }
+
+    private void putFull(Buffer buffer) throws InterruptedException {
+        // Never blocks: the queue has room for every buffer and the end marker
+        full.put(buffer);
+    }
+
+    private synchronized void awaitWritten() throws IOException {
+        try {
+            while (written < submitted && failure == null)
+                wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while flushing the HTCC output");
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    /**
+     * Body of the writer thread: writes each full buffer as one block, until
+     * the first failure; later buffers are only given back.
+     */
+    private void drain() {
+        try {
+            Buffer buffer;
+            while ((buffer = full.take()) != END_OF_OUTPUT) {
+                if (failure == null) {
+                    try {
+                        serialize(buffer);
+                        writeBlock();
+                        eventsWritten += buffer.numEvents;
+                    } catch (IOException e) {
+                        synchronized (this) {
+                            failure = e;
+                        }
+                    }
+                }
+                free.put(buffer);
+                synchronized (this) {
+                    written++;
+                    notifyAll();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Serializes the events of a buffer into one block.
+     */
+    private void serialize(Buffer buffer) {
+        HTCCClusterColumns clusters = buffer.clusters;
+        int numEvents = buffer.numEvents;
+        // Per event: the event and cluster bank headers, the event index, the
+        // parameters version and the 13 column headers, plus one word per
+        // integer entry and two per floating point entry
+        long words = BLOCK_HEADER_WORDS +
+                     (long) numEvents*(2 + 2 + 4 + 4 + 2*(NUM_INT_COLUMNS + NUM_DOUBLE_COLUMNS)) +
+                     (long) clusters.size()*(NUM_INT_COLUMNS + 2*NUM_DOUBLE_COLUMNS);
+        if (4*words > Integer.MAX_VALUE)
+            throw new IllegalStateException("HTCC output block too large");
+        if (4*words > block.capacity())
+            block = ByteBuffer.allocate((int) Math.min(Integer.MAX_VALUE, Math.max(4*words, 2L*block.capacity())))
+                              .order(ByteOrder.BIG_ENDIAN);
+        block.clear();
+        putBlockHeader((int) words, numEvents, 0);
+        for (int event=0; event<numEvents; ++event) {
+            int first = buffer.eventOffsets[event];
+            int count = buffer.eventOffsets[event+1] - first;
+            int columnWords = 4 + 4 + (2 + count)*NUM_INT_COLUMNS + (2 + 2*count)*NUM_DOUBLE_COLUMNS;
+            putBankHeader(columnWords + 3, EVENT_TAG, TYPE_ALSOBANK, 0);
+            putBankHeader(columnWords + 1, tag, TYPE_ALSOBANK, 0);
+            putBankHeader(3, tag, TYPE_ULONG64, 0);
+            block.putLong(buffer.eventIndexes[event]);
+            putBankHeader(3, tag, TYPE_ULONG64, VERSION_NUM);
+            block.putLong(buffer.parametersVersions[event]);
+            putInts(1, clusters.nhits, first, count);
+            putInts(2, clusters.ntheta, first, count);
+            putInts(3, clusters.nphi, first, count);
+            putInts(4, clusters.mintheta, first, count);
+            putInts(5, clusters.maxtheta, first, count);
+            putInts(6, clusters.minphi, first, count);
+            putInts(7, clusters.maxphi, first, count);
+            putInts(8, clusters.nphe, first, count);
+            putDoubles(9, clusters.time, first, count);
+            putDoubles(10, clusters.theta, first, count);
+            putDoubles(11, clusters.phi, first, count);
+            putDoubles(12, clusters.dtheta, first, count);
+            putDoubles(13, clusters.dphi, first, count);
+        }
+        block.flip();
+    }
+
+    private void putBlockHeader(int words, int numEvents, int flags) {
+        block.putInt(words).putInt(blockNumber++).putInt(BLOCK_HEADER_WORDS).putInt(numEvents)
+             .putInt(0).putInt(VERSION | flags).putInt(0).putInt(BLOCK_MAGIC);
+    }
+
+    private void putBankHeader(int length, int tag, int type, int num) {
+        block.putInt(length).putInt((tag << 16) | (type << 8) | num);
+    }
+
+    private void putInts(int num, int[] values, int first, int count) {
+        putBankHeader(count + 1, tag, TYPE_INT32, num);
+        for (int i=first; i<first+count; ++i)
+            block.putInt(values[i]);
+    }
+
+    private void putDoubles(int num, double[] values, int first, int count) {
+        putBankHeader(2*count + 1, tag, TYPE_DOUBLE64, num);
+        for (int i=first; i<first+count; ++i)
+            block.putDouble(values[i]);
+    }
+
+    private void writeBlock() throws IOException {
+        int bytes = block.remaining();
+        while (block.hasRemaining())
+            channel.write(block);
+        bytesWritten += bytes;
+    }
+}
@@ -0,0 +1,156 @@
+package org.jlab.rec.htcc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Per-event scratch of the HTCC reconstruction.
+ * <p>
+ * An <code>HTCCReconstruction</code> holds only immutable configuration and
+ * can be shared between threads; everything that changes from one event to
+ * the next lives here.  Each thread uses its own context, obtained from
+ * <code>HTCCReconstruction.newContext()</code>, and reuses it for every event
+ * it processes.
+ * <p>
+ * The buffers only grow, when an event has more hits or clusters than any
+ * event seen before, so in the steady state clustering an event allocates
+ * nothing.  Clusters returned by <code>findClusters</code> belong to the
+ * context and are reused for the next event.
+ */
+public final class HTCCEventContext {
+    private static final int INITIAL_CAPACITY = 64;
+
+    // Parameter snapshot of the current event and its version, 0 for the
+    // parameters of a run from the calibration provider
+    ReconstructionParameters parameters;
+    long parametersVersion;
+
+    // Trace of the current event, read once per event by
+    // HTCCReconstruction.findClusters()
+    HTCCTrace trace = HTCCTrace.OFF;
+
+    // Photoelectrons and times of the hits of the current event, either the
+    // raw columns or, for an event of a batch, the buffers below
+    int[] npheArray;
+    double[] timeArray;
+    int numHits;
+
+    // Decoded detector indices of the hits, the first numHits entries are in use
+    int[] ithetaArray = new int[INITIAL_CAPACITY];
+    int[] iphiArray = new int[INITIAL_CAPACITY];
+    int[] channelArray = new int[INITIAL_CAPACITY];
+
+    // Copies of the hits of an event of a batch
+    int[] npheBuffer = new int[INITIAL_CAPACITY];
+    double[] timeBuffer = new double[INITIAL_CAPACITY];
+
+    // Index of the hit occupying each channel, see
+    // HTCCReconstruction.findClustersMasked()
+    final int[] channelHit = new int[HTCCChannelTable.NUM_CHANNELS];
+
+    // Union-find parent, component members and corrected hit time of each
+    // channel, see HTCCReconstruction.findClustersConnected()
+    final int[] componentParent = new int[HTCCChannelTable.NUM_CHANNELS];
+    final long[] componentMembers = new long[HTCCChannelTable.NUM_CHANNELS];
+    final double[] channelTime = new double[HTCCChannelTable.NUM_CHANNELS];
+
+    // Seed order of the mask based clustering
+    final HTCCSeedQueue seeds = new HTCCSeedQueue();
+
+    // Clusters of the current event as columns
+    final HTCCClusterColumns result = new HTCCClusterColumns();
+
+    // Metrics written by the thread using this context
+    final HTCCMetrics.Recorder metrics;
+
+    // Clusters of recently seen hit patterns
+    final HTCCPatternCache patternCache = new HTCCPatternCache();
+
+    // Remaining hits list of the list based clustering
+    final HTCCHitList remainingHits = new HTCCHitList(INITIAL_CAPACITY);
+
+    // Clusters of the current event, and every cluster object handed out so
+    // far; the first clustersUsed of clusterPool belong to the current event
+    final List<HTCCCluster> clusters = new ArrayList<HTCCCluster>();
+    private final List<HTCCCluster> clusterPool = new ArrayList<HTCCCluster>();
+    private int clustersUsed;
+
+    // Clusters of the current event that failed the quality cuts
+    int rejectedClusters;
+
+    HTCCEventContext(ReconstructionParameters parameters, HTCCMetrics.Recorder metrics) {
+        this.parameters = parameters;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Moves the metrics of this context to the totals of its reconstruction,
+     * which otherwise keeps summing them for as long as it lives.  Call it
+     * once the context is no longer used; later events would not be counted.
+     */
+    public void release() {
+        metrics.release();
+    }
+
+    /**
+     * Returns the version of the parameters that clustered the last event
+     * processed with this context, see
+     * <code>HTCCReconstruction.getParametersVersion()</code>.  It is 0 if the
+     * event was clustered with the parameters of its run.
+     * @return the parameter version
+     */
+    public long getParametersVersion() {
+        return parametersVersion;
+    }
+
+    /**
+     * Returns the pattern cache of this context, for its hit rate.  Its
+     * counters are updated by the thread using the context without
+     * synchronization, so other threads may read slightly stale values.
+     * @return the pattern cache
+     */
+    HTCCPatternCache getPatternCache() {
+        return patternCache;
+    }
+
+    /**
+     * Makes room for the decoded indices of the given number of hits.
+     * @param numHits the number of hits of the next event
+     */
+    void ensureCapacity(int numHits) {
+        if (numHits > ithetaArray.length) {
+            int capacity = Math.max(numHits, 2*ithetaArray.length);
+            ithetaArray  = new int[capacity];
+            iphiArray    = new int[capacity];
+            channelArray = new int[capacity];
+            npheBuffer   = new int[capacity];
+            timeBuffer   = new double[capacity];
+        }
+    }
+
+    /**
+     * Forgets the clusters of the previous event.
+     */
+    void resetClusters() {
+        clusters.clear();
+        clustersUsed = 0;
+        rejectedClusters = 0;
+    }
+
+    /**
+     * Returns an empty cluster, reusing one from a previous event if possible.
+     * @return an empty cluster
+     */
+    HTCCCluster newCluster() {
+        HTCCCluster cluster;
+        if (clustersUsed < clusterPool.size()) {
+            cluster = clusterPool.get(clustersUsed);
+            cluster.clear();
+        } else {
+            cluster = new HTCCCluster();
+            clusterPool.add(cluster);
+        }
+        clustersUsed++;
+        return cluster;
+    }
+}
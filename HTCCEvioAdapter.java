@@ -0,0 +1,106 @@
+package org.jlab.rec.htcc;
+
+import org.jlab.evio.clas12.EvioDataBank;
+import org.jlab.evio.clas12.EvioDataDictionary;
+import org.jlab.evio.clas12.EvioDataEvent;
+
+/**
+ * Connects the clustering to an EVIO event: reads the hits from the
+ * HTCC::dgtz bank and appends the clusters as an HTCCRec::clusters bank.
+ * <p>
+ * Besides the cluster columns, every row of the bank holds in the int column
+ * <code>version</code> the version of the reconstruction parameters that
+ * clustered the event, as stored by <code>HTCCClusterWriter</code> in the
+ * bank of num 14.  The HTCCRec::clusters definition of the CLAS12 dictionary
+ * must declare that column, with tag 14.
+ */
+final class HTCCEvioAdapter implements HTCCHitSource, HTCCClusterSink {
+    private final EvioDataEvent event;
+    private final EvioDataBank bankDGTZ;
+
+    /**
+     * Creates the adapter of one event.
+     * @param event the event under analysis
+     */
+    HTCCEvioAdapter(EvioDataEvent event) {
+        this.event = event;
+        this.bankDGTZ = (EvioDataBank) event.getBank("HTCC::dgtz");
+    }
+
+    @Override
+    public int getNumHits() {
+        return bankDGTZ == null ? 0 : bankDGTZ.rows();
+    }
+
+    @Override
+    public int[] getHitn() {
+        return bankDGTZ.getInt("hitn");
+    }
+
+    @Override
+    public int[] getSector() {
+        return bankDGTZ.getInt("sector");
+    }
+
+    @Override
+    public int[] getRing() {
+        return bankDGTZ.getInt("ring");
+    }
+
+    @Override
+    public int[] getHalf() {
+        return bankDGTZ.getInt("half");
+    }
+
+    @Override
+    public int[] getNphe() {
+        return bankDGTZ.getInt("nphe");
+    }
+
+    @Override
+    public double[] getTime() {
+        return bankDGTZ.getDouble("time");
+    }
+
+    /**
+     * Pushes the clusters into the HTCCRec::clusters bank of the event.  No
+     * bank is added for an event without clusters.
+     * @param clusters the output clusters
+     */
+    @Override
+    public void write(HTCCClusterColumns clusters) {
+        // Determine the size of the output
+        int size = clusters.size();
+        
+        if (size == 0)
+            return;
+        
+        // Create the output bank
+        EvioDataDictionary dict = (EvioDataDictionary) event.getDictionary();
+        EvioDataBank bankClusters = (EvioDataBank) dict.createBank("HTCCRec::clusters", size);
+
+        // Versions count parameter changes, so they fit an int
+        int version = (int) clusters.getParametersVersion();
+        
+        // Fill the output bank
+        for (int i = 0; i < size; ++i) {
+            bankClusters.setInt("nhits", i, clusters.getNHitClust(i));
+            bankClusters.setInt("ntheta", i, clusters.getNThetaClust(i));
+            bankClusters.setInt("nphi", i, clusters.getNPhiClust(i));
+            bankClusters.setInt("mintheta", i, clusters.getIThetaMin(i));
+            bankClusters.setInt("maxtheta", i, clusters.getIThetaMax(i));
+            bankClusters.setInt("minphi", i, clusters.getIPhiMin(i));
+            bankClusters.setInt("maxphi", i, clusters.getIPhiMax(i));
+            bankClusters.setInt("nphe", i, clusters.getNPheTot(i));
+            bankClusters.setDouble("time", i, clusters.getTime(i));
+            bankClusters.setDouble("theta", i, clusters.getTheta(i));
+            bankClusters.setDouble("phi", i, clusters.getPhi(i));
+            bankClusters.setDouble("dtheta", i, clusters.getDTheta(i));
+            bankClusters.setDouble("dphi", i, clusters.getDPhi(i));
+            bankClusters.setInt("version", i, version);
+        }
+        
+        // Push the results into the bank
+        event.appendBanks(bankClusters);
+    }
+}
@@ -0,0 +1,63 @@
+package org.jlab.rec.htcc;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * Reads the parameters of each run from a local directory.
+ * <p>
+ * The parameters of run <i>N</i> are read from <code>htcc_N.params</code>, or
+ * from <code>htcc_default.params</code> if there is no file for the run.  A
+ * file holds a packed string as described in
+ * <code>ReconstructionParameters</code>; it may be split over several lines,
+ * and lines starting with <code>#</code> are comments.
+ */
+final class HTCCFileCalibrationProvider implements HTCCCalibrationProvider {
+    private final File directory;
+
+    /**
+     * Creates a provider reading from the given directory.
+     * @param directory the directory holding the parameter files
+     */
+    HTCCFileCalibrationProvider(File directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public ReconstructionParameters getParameters(int run) throws IOException {
+        File file = new File(directory, "htcc_" + run + ".params");
+        if (!file.isFile())
+            file = new File(directory, "htcc_default.params");
+        if (!file.isFile())
+            throw new FileNotFoundException("no HTCC parameters for run " + run + " in " + directory);
+        return read(file);
+    }
+
+    /**
+     * Reads a parameter file.
+     * @param file the file
+     * @return the parameters in the file
+     * @throws IOException if the file cannot be read or is malformed
+     */
+    static ReconstructionParameters read(File file) throws IOException {
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        StringBuilder packed = new StringBuilder();
+        for (String line : lines) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+            if (packed.length() > 0)
+                packed.append(';');
+            packed.append(line);
+        }
+        try {
+            return new ReconstructionParameters(packed.toString());
+        } catch (IllegalArgumentException e) {
+            throw new IOException(file + ": " + e.getMessage(), e);
+        }
+    }
+}
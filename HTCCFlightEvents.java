@@ -0,0 +1,125 @@
+package org.jlab.rec.htcc;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Java Flight Recorder events of the HTCC reconstruction.
+ * <p>
+ * One <code>Reconstruction</code> event covers a call of
+ * <code>processEvent</code> and one <code>Cluster</code> event covers the
+ * seeding, growth and cuts of one cluster.  Only events lasting longer than
+ * their threshold are recorded; the defaults can be changed in the recording
+ * settings like those of any JDK event, for example
+ * <code>org.jlab.rec.htcc.Cluster#threshold=0 ms</code>.
+ * <p>
+ * <code>begin</code> methods return null while no recording has the event
+ * enabled, so a disabled event costs a flag test and nothing is allocated.
+ */
+final class HTCCFlightEvents {
+    private static final EventType RECONSTRUCTION_TYPE = EventType.getEventType(Reconstruction.class);
+    private static final EventType CLUSTER_TYPE = EventType.getEventType(Cluster.class);
+
+    private HTCCFlightEvents() {
+    }
+
+    @Name("org.jlab.rec.htcc.Reconstruction")
+    @Label("HTCC Reconstruction")
+    @Category({ "CLAS12", "HTCC" })
+    @Description("Reconstruction of the HTCC hits of one event")
+    @Threshold("1 ms")
+    @StackTrace(false)
+    static final class Reconstruction extends Event {
+        @Label("Hits")
+        int hits;
+
+        @Label("Clusters")
+        int clusters;
+
+        @Label("Rejected Clusters")
+        int rejectedClusters;
+
+        @Label("Parameter Version")
+        long parametersVersion;
+    }
+
+    @Name("org.jlab.rec.htcc.Cluster")
+    @Label("HTCC Cluster")
+    @Category({ "CLAS12", "HTCC" })
+    @Description("Seeding, growth and quality cuts of one HTCC cluster")
+    @Threshold("100 us")
+    @StackTrace(false)
+    static final class Cluster extends Event {
+        @Label("Hits")
+        int hits;
+
+        @Label("Photoelectrons")
+        int nphe;
+
+        @Label("Accepted")
+        boolean accepted;
+    }
+
+    /**
+     * Starts timing an event reconstruction.
+     * @return the started event, or null if the event is disabled
+     */
+    static Reconstruction beginReconstruction() {
+        if (!RECONSTRUCTION_TYPE.isEnabled())
+            return null;
+        Reconstruction event = new Reconstruction();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Ends an event reconstruction and records it if it was slow enough.
+     * @param event the event from <code>beginReconstruction</code>
+     * @param context the context of the reconstructed event
+     * @param clusters the number of accepted clusters
+     */
+    static void commit(Reconstruction event, HTCCEventContext context, int clusters) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.hits = context.numHits;
+            event.clusters = clusters;
+            event.rejectedClusters = context.rejectedClusters;
+            event.parametersVersion = context.parametersVersion;
+            event.commit();
+        }
+    }
+
+    /**
+     * Starts timing a cluster.
+     * @return the started event, or null if the event is disabled
+     */
+    static Cluster beginCluster() {
+        if (!CLUSTER_TYPE.isEnabled())
+            return null;
+        Cluster event = new Cluster();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Ends a cluster and records it if it was slow enough.
+     * @param event the event from <code>beginCluster</code>
+     * @param cluster the grown cluster
+     * @param accepted whether the cluster passed the quality cuts
+     */
+    static void commit(Cluster event, HTCCCluster cluster, boolean accepted) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.hits = cluster.getNHitClust();
+            event.nphe = cluster.getNPheTot();
+            event.accepted = accepted;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package org.jlab.rec.htcc;
+
+import java.util.Arrays;
+
+/**
+ * Hits of many events stored as flat columns, for
+ * <code>HTCCReconstruction.processBatch</code>.
+ * <p>
+ * The hits of event <i>e</i> are entries <code>eventOffsets[e]</code> to
+ * <code>eventOffsets[e+1] - 1</code> of each column.  A block is either built
+ * hit by hit with <code>add</code> and <code>endEvent</code>, reusing its
+ * buffers, or wraps columns the caller already holds with <code>wrap</code>.
+ * The columns only carry the hits; each event is still clustered on its own.
+ * <p>
+ * A wrapped block reads the caller's arrays in place and never writes them:
+ * it cannot be added to, and <code>clear</code> gives it buffers of its own
+ * again, so later events built or read into the block leave the caller's
+ * arrays alone.  The caller must not change them while the block is
+ * clustered.
+ */
+public final class HTCCHitBlock {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private int numEvents;
+    private int numHits;
+    // Whether the columns are the caller's arrays given to wrap
+    private boolean wrapped;
+    int[] eventOffsets = new int[INITIAL_CAPACITY + 1];
+    int[] hitn = new int[INITIAL_CAPACITY];
+    int[] sector = new int[INITIAL_CAPACITY];
+    int[] ring = new int[INITIAL_CAPACITY];
+    int[] half = new int[INITIAL_CAPACITY];
+    int[] nphe = new int[INITIAL_CAPACITY];
+    double[] time = new double[INITIAL_CAPACITY];
+
+    /**
+     * Removes every event.  A wrapped block lets go of the caller's arrays.
+     */
+    public void clear() {
+        if (wrapped) {
+            eventOffsets = new int[INITIAL_CAPACITY + 1];
+            hitn = new int[INITIAL_CAPACITY];
+            sector = new int[INITIAL_CAPACITY];
+            ring = new int[INITIAL_CAPACITY];
+            half = new int[INITIAL_CAPACITY];
+            nphe = new int[INITIAL_CAPACITY];
+            time = new double[INITIAL_CAPACITY];
+            wrapped = false;
+        }
+        numEvents = 0;
+        numHits = 0;
+        eventOffsets[0] = 0;
+    }
+
+    /**
+     * Appends one hit to the event being built.
+     * @param hitn the hit number
+     * @param sector the sector (1-6)
+     * @param ring the ring (1-4)
+     * @param half the half sector (1-2)
+     * @param nphe the number of photoelectrons
+     * @param time the time
+     * @throws IllegalStateException if the block is wrapped
+     */
+    public void add(int hitn, int sector, int ring, int half, int nphe, double time) {
+        checkNotWrapped();
+        if (numHits == this.hitn.length)
+            grow(numHits + 1);
+        int i = numHits++;
+        this.hitn[i]   = hitn;
+        this.sector[i] = sector;
+        this.ring[i]   = ring;
+        this.half[i]   = half;
+        this.nphe[i]   = nphe;
+        this.time[i]   = time;
+    }
+
+    /**
+     * Appends the given number of hits to the event being built, to be filled
+     * in place in the columns.
+     * @param hits the number of hits
+     * @return the index of the first appended hit
+     * @throws IllegalStateException if the block is wrapped
+     */
+    int reserve(int hits) {
+        checkNotWrapped();
+        if (numHits + hits > this.hitn.length)
+            grow(numHits + hits);
+        int first = numHits;
+        numHits += hits;
+        return first;
+    }
+
+    private void checkNotWrapped() {
+        if (wrapped)
+            throw new IllegalStateException("wrapped block, clear it first");
+    }
+
+    private void grow(int capacity) {
+        int length = Math.max(capacity, Math.max(2*numHits, INITIAL_CAPACITY));
+        this.hitn   = Arrays.copyOf(this.hitn, length);
+        this.sector = Arrays.copyOf(this.sector, length);
+        this.ring   = Arrays.copyOf(this.ring, length);
+        this.half   = Arrays.copyOf(this.half, length);
+        this.nphe   = Arrays.copyOf(this.nphe, length);
+        this.time   = Arrays.copyOf(this.time, length);
+    }
+
+    /**
+     * Ends the event being built; the hits added since the previous call form
+     * the next event, which may be empty.
+     * @throws IllegalStateException if the block is wrapped
+     */
+    public void endEvent() {
+        checkNotWrapped();
+        if (numEvents + 1 == eventOffsets.length)
+            eventOffsets = Arrays.copyOf(eventOffsets, 2*eventOffsets.length);
+        eventOffsets[++numEvents] = numHits;
+    }
+
+    /**
+     * Makes the block use the given columns without copying them.  The block
+     * reads the arrays until the next call of <code>clear</code> or
+     * <code>wrap</code> and never writes them.
+     * @param numEvents the number of events
+     * @param eventOffsets the index of the first hit of each event, plus the
+     *        number of hits, <code>numEvents + 1</code> entries
+     * @param hitn the hit numbers
+     * @param sector the sector of each hit (1-6)
+     * @param ring the ring of each hit (1-4)
+     * @param half the half sector of each hit (1-2)
+     * @param nphe the number of photoelectrons of each hit
+     * @param time the time of each hit
+     * @throws IllegalArgumentException if the offsets do not fit the columns
+     */
+    public void wrap(int numEvents, int[] eventOffsets, int[] hitn, int[] sector, int[] ring, int[] half, int[] nphe, double[] time) {
+        if (numEvents < 0 || eventOffsets.length < numEvents + 1 || eventOffsets[0] != 0)
+            throw new IllegalArgumentException("eventOffsets");
+        int hits = eventOffsets[numEvents];
+        for (int e=0; e<numEvents; ++e) {
+            if (eventOffsets[e+1] < eventOffsets[e])
+                throw new IllegalArgumentException("eventOffsets must not decrease");
+        }
+        if (hitn.length < hits || sector.length < hits || ring.length < hits ||
+            half.length < hits || nphe.length < hits || time.length < hits)
+            throw new IllegalArgumentException("columns shorter than " + hits + " hits");
+        this.numEvents = numEvents;
+        this.numHits = hits;
+        this.eventOffsets = eventOffsets;
+        this.hitn = hitn;
+        this.sector = sector;
+        this.ring = ring;
+        this.half = half;
+        this.nphe = nphe;
+        this.time = time;
+        this.wrapped = true;
+    }
+
+    public int getNumEvents() {
+        return numEvents;
+    }
+
+    public int getNumHits() {
+        return numHits;
+    }
+
+    /**
+     * Returns the index of the first hit of an event.
+     * @param event the event
+     * @return the index of its first hit
+     */
+    public int getFirstHit(int event) {
+        return eventOffsets[event];
+    }
+
+    /**
+     * Returns the number of hits of an event.
+     * @param event the event
+     * @return the number of hits
+     */
+    public int getNumHits(int event) {
+        return eventOffsets[event+1] - eventOffsets[event];
+    }
+}
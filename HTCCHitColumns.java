@@ -0,0 +1,104 @@
+package org.jlab.rec.htcc;
+
+import java.util.Arrays;
+
+/**
+ * Reusable in-memory hit source.  Hits are appended one at a time or the
+ * columns are filled directly; the buffers only grow, so an instance reused
+ * for every event allocates nothing once it has held the largest event.
+ */
+public final class HTCCHitColumns implements HTCCHitSource {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private int size;
+    int[] hitn = new int[INITIAL_CAPACITY];
+    int[] sector = new int[INITIAL_CAPACITY];
+    int[] ring = new int[INITIAL_CAPACITY];
+    int[] half = new int[INITIAL_CAPACITY];
+    int[] nphe = new int[INITIAL_CAPACITY];
+    double[] time = new double[INITIAL_CAPACITY];
+
+    /**
+     * Removes every hit.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Appends one hit.
+     * @param hitn the hit number
+     * @param sector the sector (1-6)
+     * @param ring the ring (1-4)
+     * @param half the half sector (1-2)
+     * @param nphe the number of photoelectrons
+     * @param time the time
+     */
+    public void add(int hitn, int sector, int ring, int half, int nphe, double time) {
+        ensureCapacity(size + 1);
+        int i = size++;
+        this.hitn[i]   = hitn;
+        this.sector[i] = sector;
+        this.ring[i]   = ring;
+        this.half[i]   = half;
+        this.nphe[i]   = nphe;
+        this.time[i]   = time;
+    }
+
+    /**
+     * Sets the number of hits, growing the columns if needed, so that they
+     * can be filled in place.
+     * @param size the number of hits
+     */
+    void setNumHits(int size) {
+        ensureCapacity(size);
+        this.size = size;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= hitn.length)
+            return;
+        int length = Math.max(capacity, 2*hitn.length);
+        hitn   = Arrays.copyOf(hitn, length);
+        sector = Arrays.copyOf(sector, length);
+        ring   = Arrays.copyOf(ring, length);
+        half   = Arrays.copyOf(half, length);
+        nphe   = Arrays.copyOf(nphe, length);
+        time   = Arrays.copyOf(time, length);
+    }
+
+    @Override
+    public int getNumHits() {
+        return size;
+    }
+
+    @Override
+    public int[] getHitn() {
+        return hitn;
+    }
+
+    @Override
+    public int[] getSector() {
+        return sector;
+    }
+
+    @Override
+    public int[] getRing() {
+        return ring;
+    }
+
+    @Override
+    public int[] getHalf() {
+        return half;
+    }
+
+    @Override
+    public int[] getNphe() {
+        return nphe;
+    }
+
+    @Override
+    public double[] getTime() {
+        return time;
+    }
+}
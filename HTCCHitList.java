@@ -0,0 +1,48 @@
+package org.jlab.rec.htcc;
+
+import java.util.Arrays;
+
+/**
+ * Growable list of hit indexes stored in a primitive array, so that keeping
+ * and shrinking the remaining hits list neither boxes nor allocates once the
+ * list has reached its working size.
+ */
+final class HTCCHitList {
+    private int[] hits;
+    private int size;
+
+    HTCCHitList(int capacity) {
+        hits = new int[Math.max(capacity, 1)];
+    }
+
+    int size() {
+        return size;
+    }
+
+    int get(int index) {
+        return hits[index];
+    }
+
+    void add(int hit) {
+        if (size == hits.length)
+            hits = Arrays.copyOf(hits, 2*hits.length);
+        hits[size++] = hit;
+    }
+
+    /**
+     * Removes the entry at the given position, keeping the order of the
+     * remaining entries.
+     * @param index the position of the entry
+     * @return the removed hit index
+     */
+    int remove(int index) {
+        int hit = hits[index];
+        System.arraycopy(hits, index + 1, hits, index, size - index - 1);
+        size--;
+        return hit;
+    }
+
+    void clear() {
+        size = 0;
+    }
+}
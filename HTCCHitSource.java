@@ -0,0 +1,44 @@
+package org.jlab.rec.htcc;
+
+/**
+ * Raw HTCC hits of one event, as columns with one entry per hit, handed to
+ * <code>HTCCReconstruction.process</code>.
+ * <p>
+ * Sources are filled by the caller before each call: an EVIO event through
+ * <code>HTCCEvioAdapter</code>, or reusable <code>HTCCHitColumns</code>
+ * filled hit by hit or by <code>HTCCMappedEvioReader.next</code>.  Many events
+ * at once go through <code>HTCCHitBlock</code> and
+ * <code>processBatch</code> instead.
+ * <p>
+ * The columns are read in place, without copying, so a source may hand out
+ * reusable buffers longer than the number of hits.  The event context keeps
+ * referring to the nphe and time columns until it loads its next event; the
+ * caller must not change the columns before <code>process</code> returns
+ * and may refill them afterwards.
+ */
+public interface HTCCHitSource {
+
+    /**
+     * Returns the number of hits; the first that many entries of each column
+     * are used.
+     * @return the number of hits
+     */
+    int getNumHits();
+
+    int[] getHitn();
+
+    /** Sector of each hit (1-6). */
+    int[] getSector();
+
+    /** Ring of each hit (1-4). */
+    int[] getRing();
+
+    /** Half sector of each hit (1-2). */
+    int[] getHalf();
+
+    /** Number of photoelectrons of each hit. */
+    int[] getNphe();
+
+    /** Time of each hit. */
+    double[] getTime();
+}
@@ -0,0 +1,421 @@
+package org.jlab.rec.htcc;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads the HTCC::dgtz bank of each event of an EVIO file straight from a
+ * memory mapping of the file, without building event or bank objects.
+ * <p>
+ * The file is mapped in windows of up to <code>WINDOW_BYTES</code> and walked
+ * by offset: block headers, then event banks, then the container banks of
+ * each event until the one with the HTCC::dgtz tag is found.  The data of the
+ * other banks is never read, and an event without HTCC hits is skipped as soon
+ * as its top level has been walked.  The columns of the HTCC bank are decoded
+ * into the reusable buffers of an <code>HTCCHitColumns</code> or an
+ * <code>HTCCHitBlock</code>, so reading allocates nothing in the steady
+ * state.
+ * <p>
+ * Assumptions on the input, checked where they can be:
+ * <ul>
+ * <li>the file is written in EVIO version 4 blocks, in either byte order,
+ *     told apart by the magic word of each block header;</li>
+ * <li>every event is a bank of banks, and no event spans two blocks;</li>
+ * <li>HTCC::dgtz is a bank of banks with the tag of the <code>Layout</code>,
+ *     found at any depth below the event inside banks of banks, holding one
+ *     bank per column with the same tag and the column number as num;</li>
+ * <li>the integer columns are 32 bit and the time column is a 64 or 32 bit
+ *     float.  The hitn column may be missing and is then numbered from 1.</li>
+ * </ul>
+ * A file breaking one of them throws an <code>IOException</code>.  The
+ * mapping is released by the garbage collector once the reader is closed and
+ * unreachable.
+ */
+public final class HTCCMappedEvioReader implements Closeable {
+
+    /**
+     * Bank tag and column numbers of the HTCC::dgtz bank.
+     */
+    public static final class Layout {
+        /**
+         * The HTCC::dgtz bank of the gemc dictionary: tag 602, hitn in
+         * column 99 and sector, ring, half, nphe and time in columns 1 to 5.
+         */
+        public static final Layout DEFAULT = new Layout(602, 99, 1, 2, 3, 4, 5);
+
+        final int tag;
+        // Column numbers, indexed by HITN to TIME
+        final int[] nums;
+
+        /**
+         * Creates a layout.
+         * @param tag the tag of the bank and of its column banks (1-65535)
+         * @param hitn the num of the hitn column (0-255)
+         * @param sector the num of the sector column (0-255)
+         * @param ring the num of the ring column (0-255)
+         * @param half the num of the half column (0-255)
+         * @param nphe the num of the nphe column (0-255)
+         * @param time the num of the time column (0-255)
+         * @throws IllegalArgumentException if a value is out of range or two
+         *         columns share a num
+         */
+        public Layout(int tag, int hitn, int sector, int ring, int half, int nphe, int time) {
+            if (tag < 1 || tag > 0xffff)
+                throw new IllegalArgumentException("tag");
+            this.tag = tag;
+            this.nums = new int[] { hitn, sector, ring, half, nphe, time };
+            for (int column=0; column<NUM_COLUMNS; ++column) {
+                if (nums[column] < 0 || nums[column] > 0xff)
+                    throw new IllegalArgumentException("column num " + nums[column]);
+                for (int other=0; other<column; ++other) {
+                    if (nums[other] == nums[column])
+                        throw new IllegalArgumentException("column num " + nums[column] + " used twice");
+                }
+            }
+        }
+    }
+
+    // Largest mapped window; a block larger than this gets a window of its own
+    static final int WINDOW_BYTES = 1 << 28;
+
+    private static final int BLOCK_MAGIC = 0xc0da0100;
+    private static final int BLOCK_HEADER_WORDS = 8;
+    private static final int LAST_BLOCK_BIT = 1 << 9;
+
+    // EVIO content types
+    private static final int TYPE_UINT32 = 0x1;
+    private static final int TYPE_FLOAT32 = 0x2;
+    private static final int TYPE_DOUBLE64 = 0x8;
+    private static final int TYPE_INT32 = 0xb;
+    private static final int TYPE_BANK = 0xe;
+    private static final int TYPE_ALSOBANK = 0x10;
+
+    // Column slots
+    private static final int HITN = 0;
+    private static final int SECTOR = 1;
+    private static final int RING = 2;
+    private static final int HALF = 3;
+    private static final int NPHE = 4;
+    private static final int TIME = 5;
+    private static final int NUM_COLUMNS = 6;
+
+    private final FileChannel channel;
+    private final long fileSize;
+    private final Layout layout;
+
+    private MappedByteBuffer window;
+    private long windowStart;
+
+    // Next block, and the next event and the events left in the current one,
+    // as offsets in the window
+    private long blockPosition;
+    private boolean lastBlock;
+    private int eventOffset;
+    private int eventsLeft;
+
+    // Columns of the HTCC bank of the current event: offset of the data in
+    // the window, content type and number of entries; offset -1 if missing
+    private final int[] columnOffset = new int[NUM_COLUMNS];
+    private final int[] columnType = new int[NUM_COLUMNS];
+    private final int[] columnCount = new int[NUM_COLUMNS];
+
+    private long eventIndex = -1;
+    private long eventsRead;
+    private long eventsSkipped;
+
+    /**
+     * Opens an EVIO file with the default HTCC::dgtz layout.
+     * @param file the EVIO file
+     * @throws IOException if the file cannot be opened
+     */
+    public HTCCMappedEvioReader(File file) throws IOException {
+        this(file, Layout.DEFAULT);
+    }
+
+    /**
+     * Opens an EVIO file.
+     * @param file the EVIO file
+     * @param layout the tags of the HTCC::dgtz bank
+     * @throws IOException if the file cannot be opened
+     */
+    public HTCCMappedEvioReader(File file, Layout layout) throws IOException {
+        this.layout = layout;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.fileSize = channel.size();
+    }
+
+    /**
+     * Reads the hits of the next event with HTCC hits.
+     * @param hits receives the hits of the event
+     * @return false if there is no such event left
+     * @throws IOException if the file cannot be read or is not as described
+     *         above
+     */
+    public boolean next(HTCCHitColumns hits) throws IOException {
+        int rows = nextHtccEvent();
+        if (rows == 0)
+            return false;
+        hits.setNumHits(rows);
+        decode(rows, hits.hitn, hits.sector, hits.ring, hits.half, hits.nphe, hits.time, 0);
+        return true;
+    }
+
+    /**
+     * Reads the hits of the next events with HTCC hits into a block, which is
+     * cleared first.
+     * @param block receives the hits of the events
+     * @param maxEvents the largest number of events to read
+     * @param eventIndexes receives the index in the file of each event read,
+     *        as from <code>getEventIndex</code>, or null
+     * @return the number of events read, 0 if there is none left
+     * @throws IOException if the file cannot be read or is not as described
+     *         above
+     */
+    public int read(HTCCHitBlock block, int maxEvents, long[] eventIndexes) throws IOException {
+        if (maxEvents < 1 || (eventIndexes != null && eventIndexes.length < maxEvents))
+            throw new IllegalArgumentException("maxEvents");
+        block.clear();
+        int events = 0;
+        int rows;
+        while (events < maxEvents && (rows = nextHtccEvent()) != 0) {
+            int first = block.reserve(rows);
+            decode(rows, block.hitn, block.sector, block.ring, block.half, block.nphe, block.time, first);
+            block.endEvent();
+            if (eventIndexes != null)
+                eventIndexes[events] = eventIndex;
+            events++;
+        }
+        return events;
+    }
+
+    /**
+     * Returns the index in the file of the event last read, counting every
+     * event from 0, or -1 before the first one.
+     * @return the event index
+     */
+    public long getEventIndex() {
+        return eventIndex;
+    }
+
+    /**
+     * Returns the number of events walked so far, with or without HTCC hits.
+     * @return the number of events
+     */
+    public long getEventsRead() {
+        return eventsRead;
+    }
+
+    /**
+     * Returns the number of events skipped because they have no HTCC hits.
+     * @return the number of events
+     */
+    public long getEventsSkipped() {
+        return eventsSkipped;
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        channel.close();
+    }
+
+    /**
+     * Moves to the next event with HTCC hits and locates its columns.
+     * @return the number of hits, 0 at the end of the file
+     */
+    private int nextHtccEvent() throws IOException {
+        while (true) {
+            while (eventsLeft == 0) {
+                if (lastBlock || blockPosition >= fileSize)
+                    return 0;
+                readBlockHeader();
+            }
+            int event = eventOffset;
+            int length = window.getInt(event);
+            int type = (window.getInt(event + 4) >>> 8) & 0x3f;
+            eventOffset += 4*(length + 1);
+            eventsLeft--;
+            eventIndex = eventsRead++;
+            if (type != TYPE_BANK && type != TYPE_ALSOBANK)
+                throw new IOException("event " + eventIndex + " is not a bank of banks");
+            int bank = findBank(event + 8, event + 4*(length + 1));
+            int rows = bank < 0 ? 0 : locateColumns(bank);
+            if (rows > 0)
+                return rows;
+            eventsSkipped++;
+        }
+    }
+
+    /**
+     * Reads the header of the block at <code>blockPosition</code>, maps the
+     * whole block and moves to its first event.
+     */
+    private void readBlockHeader() throws IOException {
+        if (fileSize - blockPosition < 4*BLOCK_HEADER_WORDS)
+            throw new IOException("truncated block header at byte " + blockPosition);
+        map(blockPosition, 4*BLOCK_HEADER_WORDS);
+        int header = (int) (blockPosition - windowStart);
+        window.order(ByteOrder.BIG_ENDIAN);
+        int magic = window.getInt(header + 28);
+        if (magic != BLOCK_MAGIC) {
+            if (Integer.reverseBytes(magic) != BLOCK_MAGIC)
+                throw new IOException("no EVIO block at byte " + blockPosition);
+            window.order(ByteOrder.LITTLE_ENDIAN);
+        }
+        long blockBytes = 4L*(window.getInt(header) & 0xffffffffL);
+        int headerWords = window.getInt(header + 8);
+        int numEvents = window.getInt(header + 12);
+        int info = window.getInt(header + 20);
+        if ((info & 0xff) != 4)
+            throw new IOException("EVIO version " + (info & 0xff) + " at byte " + blockPosition + ", expected 4");
+        if (headerWords < BLOCK_HEADER_WORDS || blockBytes < 4L*headerWords || blockBytes > fileSize - blockPosition)
+            throw new IOException("bad block length at byte " + blockPosition);
+
+        ByteOrder order = window.order();
+        map(blockPosition, blockBytes);
+        window.order(order);
+        header = (int) (blockPosition - windowStart);
+        eventOffset = header + 4*headerWords;
+        eventsLeft = numEvents;
+        lastBlock = (info & LAST_BLOCK_BIT) != 0;
+        blockPosition += blockBytes;
+
+        // Check that the events fill the block, so that they can be walked
+        // without further bounds checks
+        int end = (int) (header + blockBytes);
+        int offset = eventOffset;
+        for (int e=0; e<numEvents; ++e) {
+            if (end - offset < 8)
+                throw new IOException("event " + (eventsRead + e) + " runs past its block");
+            long length = window.getInt(offset) & 0xffffffffL;
+            if (length < 1 || 4*(length + 1) > end - offset)
+                throw new IOException("event " + (eventsRead + e) + " runs past its block");
+            offset += 4*(int) (length + 1);
+        }
+    }
+
+    /**
+     * Makes sure that the window holds the given range of the file.
+     */
+    private void map(long position, long bytes) throws IOException {
+        if (window != null && position >= windowStart && position + bytes <= windowStart + window.limit())
+            return;
+        long size = Math.min(fileSize - position, Math.max(bytes, WINDOW_BYTES));
+        if (size > Integer.MAX_VALUE)
+            throw new IOException("block at byte " + position + " is too large to map");
+        window = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+        windowStart = position;
+    }
+
+    /**
+     * Returns the offset of the first bank of banks with the HTCC tag among
+     * the banks between two offsets, searching inside banks of banks, or -1
+     * if there is none.
+     */
+    private int findBank(int start, int end) throws IOException {
+        int offset = start;
+        while (offset < end) {
+            if (end - offset < 8)
+                throw new IOException("bank runs past its parent in event " + eventIndex);
+            long length = window.getInt(offset) & 0xffffffffL;
+            if (4*(length + 1) > end - offset)
+                throw new IOException("bank runs past its parent in event " + eventIndex);
+            int word = window.getInt(offset + 4);
+            int type = (word >>> 8) & 0x3f;
+            int next = offset + 4*(int) (length + 1);
+            if (type == TYPE_BANK || type == TYPE_ALSOBANK) {
+                if (word >>> 16 == layout.tag)
+                    return offset;
+                int bank = findBank(offset + 8, next);
+                if (bank >= 0)
+                    return bank;
+            }
+            offset = next;
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the columns of the HTCC bank at the given offset.
+     * @return the number of hits
+     */
+    private int locateColumns(int bank) throws IOException {
+        for (int column=0; column<NUM_COLUMNS; ++column)
+            columnOffset[column] = -1;
+        int end = bank + 4*(window.getInt(bank) + 1);
+        int offset = bank + 8;
+        while (offset < end) {
+            long words = window.getInt(offset) & 0xffffffffL;
+            if (end - offset < 8 || words < 1 || 4*(words + 1) > end - offset)
+                throw new IOException("HTCC column runs past its bank in event " + eventIndex);
+            int length = (int) words;
+            int word = window.getInt(offset + 4);
+            if (word >>> 16 == layout.tag) {
+                int num = word & 0xff;
+                for (int column=0; column<NUM_COLUMNS; ++column) {
+                    if (layout.nums[column] == num) {
+                        int type = (word >>> 8) & 0x3f;
+                        columnOffset[column] = offset + 8;
+                        columnType[column] = type;
+                        columnCount[column] = type == TYPE_DOUBLE64 ? (length - 1)/2 : length - 1;
+                    }
+                }
+            }
+            offset += 4*(length + 1);
+        }
+
+        int rows = columnCount[SECTOR];
+        for (int column=0; column<NUM_COLUMNS; ++column) {
+            if (columnOffset[column] < 0) {
+                if (column == HITN)
+                    continue;
+                throw new IOException("HTCC bank of event " + eventIndex + " has no column " + layout.nums[column]);
+            }
+            int type = columnType[column];
+            boolean typeOk = column == TIME ? type == TYPE_DOUBLE64 || type == TYPE_FLOAT32
+                                            : type == TYPE_INT32 || type == TYPE_UINT32;
+            if (!typeOk)
+                throw new IOException("HTCC column " + layout.nums[column] + " of event " + eventIndex +
+                                      " has content type " + type);
+            if (columnCount[column] != rows)
+                throw new IOException("HTCC columns of event " + eventIndex + " differ in length");
+        }
+        return rows;
+    }
+
+    /**
+     * Decodes the located columns into the given arrays, starting at index
+     * <code>first</code>.
+     */
+    private void decode(int rows, int[] hitn, int[] sector, int[] ring, int[] half, int[] nphe, double[] time, int first) {
+        if (columnOffset[HITN] < 0) {
+            for (int i=0; i<rows; ++i)
+                hitn[first + i] = i + 1;
+        } else {
+            decodeInts(HITN, rows, hitn, first);
+        }
+        decodeInts(SECTOR, rows, sector, first);
+        decodeInts(RING, rows, ring, first);
+        decodeInts(HALF, rows, half, first);
+        decodeInts(NPHE, rows, nphe, first);
+        int offset = columnOffset[TIME];
+        if (columnType[TIME] == TYPE_DOUBLE64) {
+            for (int i=0; i<rows; ++i)
+                time[first + i] = window.getDouble(offset + 8*i);
+        } else {
+            for (int i=0; i<rows; ++i)
+                time[first + i] = window.getFloat(offset + 4*i);
+        }
+    }
+
+    private void decodeInts(int column, int rows, int[] values, int first) {
+        int offset = columnOffset[column];
+        for (int i=0; i<rows; ++i)
+            values[first + i] = window.getInt(offset + 4*i);
+    }
+}
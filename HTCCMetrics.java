@@ -0,0 +1,392 @@
+package org.jlab.rec.htcc;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms of the HTCC reconstruction.
+ * <p>
+ * Each event context records into its own <code>Recorder</code>, which only
+ * its thread writes, so recording takes no lock and no atomic read-modify-write:
+ * each update is a plain read followed by an ordered store.  A
+ * <code>snapshot</code> may be taken from any thread at any time and sums the
+ * recorders; it sees every update completed before it started and possibly
+ * some made while it runs.  A context that is no longer needed releases its
+ * recorder, whose values then move to retired totals, so the number of
+ * recorders stays that of the live contexts.
+ * <p>
+ * Latencies are kept in histograms with power of two buckets, so a percentile
+ * is known to within a factor of two; the mean is exact.
+ */
+final class HTCCMetrics {
+
+    /**
+     * Timed stages of <code>HTCCReconstruction.process</code>.
+     */
+    enum Stage {
+        /** Hit decode, <code>loadHits</code>. */
+        DECODE("loadHits"),
+        /** Seed search, cluster growth and cuts, <code>findClusters</code>. */
+        CLUSTER("findClusters"),
+        /** Cluster columns and the cluster sink, such as the EVIO bank. */
+        OUTPUT("writeClusters"),
+        /** The whole event. */
+        EVENT("processEvent");
+
+        final String label;
+
+        Stage(String label) {
+            this.label = label;
+        }
+    }
+
+    // Bucket b counts latencies below 2^(b+1) ns and, but for bucket 0, at
+    // least 2^b ns; the last bucket takes everything longer
+    static final int LATENCY_BUCKETS = 40;
+
+    // Bucket n counts events with n accepted clusters, the last one events
+    // with MAX_MULTIPLICITY or more
+    static final int MAX_MULTIPLICITY = 16;
+
+    /**
+     * Quality cuts of the clusters, see <code>HTCCReconstruction</code>.
+     */
+    enum Cut {
+        /** Too few photoelectrons, below <code>npeminclst</code>. */
+        NPE("npeminclst"),
+        /** Too wide in theta, above <code>nthetamaxclst</code>. */
+        NTHETA("nthetamaxclst"),
+        /** Too wide in phi, above <code>nphimaxclst</code>. */
+        NPHI("nphimaxclst"),
+        /** Too many hits, above <code>nhitmaxclst</code>. */
+        NHIT("nhitmaxclst");
+
+        final String label;
+
+        Cut(String label) {
+            this.label = label;
+        }
+    }
+
+    // Counter slots of a recorder; a rejected cluster counts once in
+    // REJECTED and once for each cut it fails
+    private static final int EVENTS = 0;
+    private static final int HITS = 1;
+    private static final int CLUSTERS = 2;
+    private static final int REJECTED = 3;
+    private static final int FIRST_CUT = 4;
+    private static final int NUM_COUNTERS = FIRST_CUT + Cut.values().length;
+
+    private static final int NUM_STAGES = Stage.values().length;
+
+    private final List<Recorder> recorders = new CopyOnWriteArrayList<Recorder>();
+    private final long startNanos = System.nanoTime();
+
+    // Sums of the released recorders; guarded by this
+    private final long[] retiredCounters = new long[NUM_COUNTERS];
+    private final long[] retiredStageNanos = new long[NUM_STAGES];
+    private final long[] retiredLatency = new long[NUM_STAGES*LATENCY_BUCKETS];
+    private final long[] retiredMultiplicity = new long[MAX_MULTIPLICITY + 1];
+
+    /**
+     * Creates the recorder of one event context.
+     * @return a recorder that must be written by one thread only
+     */
+    Recorder newRecorder() {
+        Recorder recorder = new Recorder(this);
+        recorders.add(recorder);
+        return recorder;
+    }
+
+    /**
+     * Adds the values of a recorder to the retired totals and stops summing
+     * it.  Values recorded afterwards are lost.
+     * @param recorder a recorder of this instance
+     */
+    private synchronized void release(Recorder recorder) {
+        if (!recorders.remove(recorder))
+            return;
+        add(retiredCounters, recorder.counters);
+        add(retiredStageNanos, recorder.stageNanos);
+        add(retiredLatency, recorder.latency);
+        add(retiredMultiplicity, recorder.multiplicity);
+    }
+
+    /**
+     * Returns the number of recorders not yet released.
+     * @return the number of recorders
+     */
+    int getNumRecorders() {
+        return recorders.size();
+    }
+
+    /**
+     * Returns the sum of all recorders, released or not.
+     * @return the current metrics
+     */
+    synchronized Snapshot snapshot() {
+        long[] counters = retiredCounters.clone();
+        long[] stageNanos = retiredStageNanos.clone();
+        long[] latency = retiredLatency.clone();
+        long[] multiplicity = retiredMultiplicity.clone();
+        for (Recorder recorder : recorders) {
+            add(counters, recorder.counters);
+            add(stageNanos, recorder.stageNanos);
+            add(latency, recorder.latency);
+            add(multiplicity, recorder.multiplicity);
+        }
+        return new Snapshot(System.nanoTime() - startNanos, counters, stageNanos, latency, multiplicity);
+    }
+
+    private static void add(long[] sum, AtomicLongArray values) {
+        for (int i=0; i<sum.length; ++i)
+            sum[i] += values.get(i);
+    }
+
+    /**
+     * Returns the histogram bucket of a latency.
+     * @param nanos the latency in nanoseconds
+     * @return the bucket
+     */
+    static int latencyBucket(long nanos) {
+        int bucket = 63 - Long.numberOfLeadingZeros(nanos | 1L);
+        return Math.min(bucket, LATENCY_BUCKETS - 1);
+    }
+
+    /**
+     * Metrics of one event context.  Only the thread using the context
+     * writes them.
+     */
+    static final class Recorder {
+        private final AtomicLongArray counters = new AtomicLongArray(NUM_COUNTERS);
+        private final AtomicLongArray stageNanos = new AtomicLongArray(NUM_STAGES);
+        private final AtomicLongArray latency = new AtomicLongArray(NUM_STAGES*LATENCY_BUCKETS);
+        private final AtomicLongArray multiplicity = new AtomicLongArray(MAX_MULTIPLICITY + 1);
+        private final HTCCMetrics owner;
+
+        private Recorder(HTCCMetrics owner) {
+            this.owner = owner;
+        }
+
+        /**
+         * Moves the values of this recorder to the retired totals of its
+         * metrics.  Called once the recording thread is done with it.
+         */
+        void release() {
+            owner.release(this);
+        }
+
+        /**
+         * Records a reconstructed event.
+         * @param hits the number of hits of the event
+         * @param clusters the number of accepted clusters
+         */
+        void event(int hits, int clusters) {
+            increment(counters, EVENTS, 1);
+            increment(counters, HITS, hits);
+            increment(counters, CLUSTERS, clusters);
+            increment(multiplicity, Math.min(clusters, MAX_MULTIPLICITY), 1);
+        }
+
+        /**
+         * Records a cluster rejected by the quality cuts.
+         * @param npe whether the cluster failed the npeminclst cut
+         * @param ntheta whether the cluster failed the nthetamaxclst cut
+         * @param nphi whether the cluster failed the nphimaxclst cut
+         * @param nhit whether the cluster failed the nhitmaxclst cut
+         */
+        void rejected(boolean npe, boolean ntheta, boolean nphi, boolean nhit) {
+            increment(counters, REJECTED, 1);
+            if (npe)
+                increment(counters, FIRST_CUT + Cut.NPE.ordinal(), 1);
+            if (ntheta)
+                increment(counters, FIRST_CUT + Cut.NTHETA.ordinal(), 1);
+            if (nphi)
+                increment(counters, FIRST_CUT + Cut.NPHI.ordinal(), 1);
+            if (nhit)
+                increment(counters, FIRST_CUT + Cut.NHIT.ordinal(), 1);
+        }
+
+        /**
+         * Records the latency of a stage.
+         * @param stage the stage
+         * @param nanos the time spent in nanoseconds
+         */
+        void stage(Stage stage, long nanos) {
+            int index = stage.ordinal();
+            increment(stageNanos, index, nanos);
+            increment(latency, index*LATENCY_BUCKETS + latencyBucket(nanos), 1);
+        }
+
+        // Single writer, so the increment needs no compare-and-set
+        private static void increment(AtomicLongArray array, int index, long delta) {
+            array.lazySet(index, array.get(index) + delta);
+        }
+    }
+
+    /**
+     * Metrics summed over all contexts at one point in time.
+     */
+    static final class Snapshot {
+        private final long elapsedNanos;
+        private final long[] counters;
+        private final long[] stageNanos;
+        private final long[] latency;
+        private final long[] multiplicity;
+
+        private Snapshot(long elapsedNanos, long[] counters, long[] stageNanos, long[] latency, long[] multiplicity) {
+            this.elapsedNanos = elapsedNanos;
+            this.counters = counters;
+            this.stageNanos = stageNanos;
+            this.latency = latency;
+            this.multiplicity = multiplicity;
+        }
+
+        /**
+         * Returns the metrics of the interval between an earlier snapshot and
+         * this one.
+         * @param earlier a snapshot of the same metrics taken before this one
+         * @return the difference
+         */
+        Snapshot since(Snapshot earlier) {
+            return new Snapshot(elapsedNanos - earlier.elapsedNanos,
+                                minus(counters, earlier.counters),
+                                minus(stageNanos, earlier.stageNanos),
+                                minus(latency, earlier.latency),
+                                minus(multiplicity, earlier.multiplicity));
+        }
+
+        private static long[] minus(long[] a, long[] b) {
+            long[] difference = new long[a.length];
+            for (int i=0; i<a.length; ++i)
+                difference[i] = a[i] - b[i];
+            return difference;
+        }
+
+        long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        long getEvents() {
+            return counters[EVENTS];
+        }
+
+        long getHits() {
+            return counters[HITS];
+        }
+
+        long getClusters() {
+            return counters[CLUSTERS];
+        }
+
+        long getRejectedClusters() {
+            return counters[REJECTED];
+        }
+
+        /**
+         * Returns the number of clusters that failed the given cut.  A
+         * cluster failing several cuts is counted for each of them.
+         * @param cut the cut
+         * @return the number of clusters
+         */
+        long getRejectedClusters(Cut cut) {
+            return counters[FIRST_CUT + cut.ordinal()];
+        }
+
+        double getEventsPerSecond() {
+            return perSecond(counters[EVENTS]);
+        }
+
+        double getHitsPerSecond() {
+            return perSecond(counters[HITS]);
+        }
+
+        double getClustersPerEvent() {
+            return counters[EVENTS] == 0 ? 0.0 : (double) counters[CLUSTERS]/counters[EVENTS];
+        }
+
+        /**
+         * Returns the fraction of the grown clusters that failed the quality
+         * cuts.
+         * @return the reject rate
+         */
+        double getRejectRate() {
+            long grown = counters[CLUSTERS] + counters[REJECTED];
+            return grown == 0 ? 0.0 : (double) counters[REJECTED]/grown;
+        }
+
+        /**
+         * Returns the number of events with the given number of accepted
+         * clusters; the last bucket counts every larger number.
+         * @param clusters the number of clusters, 0 to MAX_MULTIPLICITY
+         * @return the number of events
+         */
+        long getMultiplicity(int clusters) {
+            return multiplicity[clusters];
+        }
+
+        /**
+         * Returns the mean latency of a stage.
+         * @param stage the stage
+         * @return the mean in nanoseconds
+         */
+        double getMeanNanos(Stage stage) {
+            long calls = 0;
+            for (int b=0; b<LATENCY_BUCKETS; ++b)
+                calls += latency[stage.ordinal()*LATENCY_BUCKETS + b];
+            return calls == 0 ? 0.0 : (double) stageNanos[stage.ordinal()]/calls;
+        }
+
+        /**
+         * Returns an upper bound of a latency percentile of a stage, the upper
+         * edge of the histogram bucket holding it.
+         * @param stage the stage
+         * @param fraction the percentile as a fraction, for example 0.99
+         * @return the percentile in nanoseconds, 0 if nothing was recorded
+         */
+        long getPercentileNanos(Stage stage, double fraction) {
+            int offset = stage.ordinal()*LATENCY_BUCKETS;
+            long calls = 0;
+            for (int b=0; b<LATENCY_BUCKETS; ++b)
+                calls += latency[offset + b];
+            if (calls == 0)
+                return 0;
+            long rank = (long) Math.ceil(fraction*calls);
+            long seen = 0;
+            for (int b=0; b<LATENCY_BUCKETS; ++b) {
+                seen += latency[offset + b];
+                if (seen >= rank)
+                    return 1L << (b + 1);
+            }
+            return Long.MAX_VALUE;
+        }
+
+        private double perSecond(long count) {
+            return elapsedNanos <= 0 ? 0.0 : count*1e9/elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder report = new StringBuilder(512);
+            report.append(String.format("[HTCC-metrics] %d events %.1f/s, %d hits %.1f/s, %.3f clusters/event, reject rate %.4f%n",
+                                        getEvents(), getEventsPerSecond(), getHits(), getHitsPerSecond(),
+                                        getClustersPerEvent(), getRejectRate()));
+            report.append("[HTCC-metrics]   rejected by");
+            for (Cut cut : Cut.values())
+                report.append(' ').append(cut.label).append(':').append(getRejectedClusters(cut));
+            report.append(String.format("%n"));
+            for (Stage stage : Stage.values()) {
+                report.append(String.format("[HTCC-metrics]   %-16s mean %10.1f ns  p50 < %8d ns  p99 < %8d ns%n",
+                                            stage.label, getMeanNanos(stage),
+                                            getPercentileNanos(stage, 0.50), getPercentileNanos(stage, 0.99)));
+            }
+            report.append("[HTCC-metrics]   clusters/event");
+            for (int n=0; n<=MAX_MULTIPLICITY; ++n) {
+                if (multiplicity[n] != 0)
+                    report.append(' ').append(n).append(n == MAX_MULTIPLICITY ? "+:" : ":").append(multiplicity[n]);
+            }
+            return report.append(String.format("%n")).toString();
+        }
+    }
+}
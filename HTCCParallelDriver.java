@@ -0,0 +1,311 @@
+package org.jlab.rec.htcc;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jlab.evio.clas12.EvioDataEvent;
+import org.jlab.evio.clas12.EvioSource;
+
+/**
+ * Runs HTCC reconstruction over an event source on a pool of worker threads.
+ * <p>
+ * The calling thread reads events, the workers reconstruct them with one
+ * shared <code>HTCCReconstruction</code>, and a writer thread hands the
+ * results to an <code>EventHandler</code> in exactly the input order.  At
+ * most <code>queueCapacity</code> events are in flight; when the writer or the
+ * workers fall behind, reading blocks.  Events from an
+ * <code>HTCCMappedEvioReader</code> are handled the same way in batches of
+ * many events, with <code>queueCapacity</code> batches in flight.
+ */
+public final class HTCCParallelDriver {
+
+    /**
+     * Receives reconstructed events in input order, on the writer thread.
+     */
+    public interface EventHandler {
+        void handle(EvioDataEvent event);
+    }
+
+    /**
+     * Receives the clusters of batches of events in input order, on the
+     * writer thread.  The arguments are reused once the call returns.
+     */
+    public interface BatchHandler {
+        /**
+         * Handles the clusters of one batch.
+         * @param clusters the clusters of the events of the batch
+         * @param eventIndexes the index in the input file of each event
+         */
+        void handle(HTCCClusterBlock clusters, long[] eventIndexes);
+    }
+
+    /**
+     * Buffers of one batch of events read by an
+     * <code>HTCCMappedEvioReader</code>; a fixed number of them circulate
+     * between the reader, the workers and the writer.
+     */
+    private static final class Batch {
+        final HTCCHitBlock hits = new HTCCHitBlock();
+        final HTCCClusterBlock clusters = new HTCCClusterBlock();
+        final long[] eventIndexes;
+
+        Batch(int eventsPerBatch) {
+            eventIndexes = new long[eventsPerBatch];
+        }
+    }
+
+    // Marks the end of the batches for the writer thread
+    private static final Future<Batch> END_OF_BATCHES =
+        new FutureTask<Batch>(new Callable<Batch>() {
+            @Override
+            public Batch call() {
+                return null;
+            }
+        });
+
+    // Marks the end of the input for the writer thread
+    private static final Future<EvioDataEvent> END_OF_INPUT =
+        new FutureTask<EvioDataEvent>(new Callable<EvioDataEvent>() {
+            @Override
+            public EvioDataEvent call() {
+                return null;
+            }
+        });
+
+    private final HTCCReconstruction reconstruction;
+    private final int numThreads;
+    private final int queueCapacity;
+    // One event context per worker, kept for the life of the driver so that
+    // every run records into the same metrics recorders
+    private final BlockingQueue<HTCCEventContext> contexts;
+
+    /**
+     * Creates a driver.
+     * @param reconstruction the reconstruction shared by all workers
+     * @param numThreads the number of worker threads
+     * @param queueCapacity the maximum number of events in flight
+     */
+    public HTCCParallelDriver(HTCCReconstruction reconstruction, int numThreads, int queueCapacity) {
+        if (numThreads < 1)
+            throw new IllegalArgumentException("numThreads");
+        if (queueCapacity < 1)
+            throw new IllegalArgumentException("queueCapacity");
+        this.reconstruction = reconstruction;
+        this.numThreads = numThreads;
+        this.queueCapacity = queueCapacity;
+        this.contexts = new ArrayBlockingQueue<HTCCEventContext>(numThreads);
+        for (int t=0; t<numThreads; ++t)
+            contexts.add(reconstruction.newContext());
+    }
+
+    /**
+     * Reconstructs every remaining event of the reader.
+     * @param reader the event source, read on the calling thread
+     * @param handler receives the reconstructed events in input order, or null
+     * @return the number of events processed
+     * @throws RuntimeException if reconstruction or the handler failed
+     */
+    public long run(EvioSource reader, final EventHandler handler) {
+        final BlockingQueue<Future<EvioDataEvent>> pending =
+            new ArrayBlockingQueue<Future<EvioDataEvent>>(queueCapacity);
+        final Throwable[] failure = new Throwable[1];
+        final long[] written = new long[1];
+
+        ExecutorService workers = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "htcc-worker-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Future<EvioDataEvent> result;
+                    while ((result = pending.take()) != END_OF_INPUT) {
+                        EvioDataEvent event = result.get();
+                        if (handler != null)
+                            handler.handle(event);
+                        written[0]++;
+                    }
+                } catch (ExecutionException e) {
+                    fail(e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (RuntimeException e) {
+                    fail(e);
+                }
+            }
+
+            private void fail(Throwable cause) {
+                synchronized (failure) {
+                    failure[0] = cause;
+                }
+            }
+        }, "htcc-writer");
+        writer.start();
+
+        try {
+            while (reader.hasEvent() && writer.isAlive()) {
+                final EvioDataEvent event = (EvioDataEvent) reader.getNextEvent();
+                Future<EvioDataEvent> result = workers.submit(new Callable<EvioDataEvent>() {
+                    @Override
+                    public EvioDataEvent call() throws InterruptedException {
+                        HTCCEventContext context = contexts.take();
+                        try {
+                            reconstruction.processEvent(event, context);
+                        } finally {
+                            contexts.put(context);
+                        }
+                        return event;
+                    }
+                });
+                // Block while the queue is full, unless the writer gave up
+                while (!pending.offer(result, 100, TimeUnit.MILLISECONDS)) {
+                    if (!writer.isAlive())
+                        break;
+                }
+            }
+            while (writer.isAlive() && !pending.offer(END_OF_INPUT, 100, TimeUnit.MILLISECONDS)) {
+                // wait for room for the end marker
+            }
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            writer.interrupt();
+        } finally {
+            // The reader may have thrown with the writer still waiting
+            if (writer.isAlive())
+                writer.interrupt();
+            workers.shutdownNow();
+        }
+
+        synchronized (failure) {
+            if (failure[0] != null)
+                throw new RuntimeException("HTCC reconstruction failed", failure[0]);
+        }
+        return written[0];
+    }
+
+    /**
+     * Reconstructs every remaining event with HTCC hits of a memory-mapped
+     * reader, in batches through <code>HTCCReconstruction.processBatch</code>.
+     * The calling thread decodes the hits straight into the buffers of
+     * <code>queueCapacity</code> batches, which are reused for the whole run,
+     * so at most that many batches are in flight.
+     * @param reader the event source, read on the calling thread
+     * @param eventsPerBatch the largest number of events of a batch
+     * @param handler receives the clusters of each batch in input order, or
+     *        null
+     * @return the number of events processed
+     * @throws IOException if the reader failed
+     * @throws RuntimeException if reconstruction or the handler failed
+     */
+    public long run(HTCCMappedEvioReader reader, int eventsPerBatch, final BatchHandler handler) throws IOException {
+        if (eventsPerBatch < 1)
+            throw new IllegalArgumentException("eventsPerBatch");
+        final BlockingQueue<Batch> free = new ArrayBlockingQueue<Batch>(queueCapacity);
+        for (int b=0; b<queueCapacity; ++b)
+            free.add(new Batch(eventsPerBatch));
+        final BlockingQueue<Future<Batch>> pending =
+            new ArrayBlockingQueue<Future<Batch>>(queueCapacity);
+        final Throwable[] failure = new Throwable[1];
+        final long[] written = new long[1];
+
+        ExecutorService workers = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "htcc-worker-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Future<Batch> result;
+                    while ((result = pending.take()) != END_OF_BATCHES) {
+                        Batch batch = result.get();
+                        if (handler != null)
+                            handler.handle(batch.clusters, batch.eventIndexes);
+                        written[0] += batch.clusters.getNumEvents();
+                        free.put(batch);
+                    }
+                } catch (ExecutionException e) {
+                    fail(e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (RuntimeException e) {
+                    fail(e);
+                }
+            }
+
+            private void fail(Throwable cause) {
+                synchronized (failure) {
+                    failure[0] = cause;
+                }
+            }
+        }, "htcc-writer");
+        writer.start();
+
+        try {
+            while (writer.isAlive()) {
+                // Wait for a free batch, unless the writer gave up
+                final Batch batch = free.poll(100, TimeUnit.MILLISECONDS);
+                if (batch == null)
+                    continue;
+                if (reader.read(batch.hits, eventsPerBatch, batch.eventIndexes) == 0)
+                    break;
+                Future<Batch> result = workers.submit(new Callable<Batch>() {
+                    @Override
+                    public Batch call() throws InterruptedException {
+                        HTCCEventContext context = contexts.take();
+                        try {
+                            reconstruction.processBatch(batch.hits, batch.clusters, context);
+                        } finally {
+                            contexts.put(context);
+                        }
+                        return batch;
+                    }
+                });
+                // Never blocks: there are no more batches than queue slots
+                pending.put(result);
+            }
+            while (writer.isAlive() && !pending.offer(END_OF_BATCHES, 100, TimeUnit.MILLISECONDS)) {
+                // wait for room for the end marker
+            }
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            writer.interrupt();
+        } finally {
+            if (writer.isAlive())
+                writer.interrupt();
+            workers.shutdownNow();
+        }
+
+        synchronized (failure) {
+            if (failure[0] != null)
+                throw new RuntimeException("HTCC reconstruction failed", failure[0]);
+        }
+        return written[0];
+    }
+}
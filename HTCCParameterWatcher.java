@@ -0,0 +1,123 @@
+package org.jlab.rec.htcc;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Reloads the parameters of an <code>HTCCReconstruction</code> whenever a
+ * parameter file changes.
+ * <p>
+ * A background thread checks the modification time and length of the file at
+ * a fixed interval.  When either changes the file is read as described in
+ * <code>HTCCFileCalibrationProvider</code> and the new snapshot is handed to
+ * <code>HTCCReconstruction.setParameters</code>, so the workers pick it up at
+ * their next event without any locking.  A file that cannot be read or parsed
+ * is reported and the current parameters are kept.
+ */
+final class HTCCParameterWatcher {
+    private final HTCCReconstruction reconstruction;
+    private final File file;
+    private final long intervalMillis;
+    private final Thread thread;
+    private volatile boolean closed;
+
+    private long lastModified;
+    private long lastLength;
+    private volatile long reloads;
+    private volatile long failures;
+
+    /**
+     * Starts watching a parameter file.  The file is read once right away if
+     * it exists.
+     * @param reconstruction the reconstruction whose parameters are replaced
+     * @param file the parameter file
+     * @param intervalMillis the time between two checks of the file
+     */
+    HTCCParameterWatcher(HTCCReconstruction reconstruction, File file, long intervalMillis) {
+        if (intervalMillis < 1)
+            throw new IllegalArgumentException("intervalMillis");
+        this.reconstruction = reconstruction;
+        this.file = file;
+        this.intervalMillis = intervalMillis;
+        lastModified = -1;
+        lastLength = -1;
+        check();
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                watch();
+            }
+        }, "htcc-parameters");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns the number of times new parameters were installed.
+     * @return the number of reloads
+     */
+    long getReloads() {
+        return reloads;
+    }
+
+    /**
+     * Returns the number of times the file changed but could not be read.
+     * @return the number of failed reloads
+     */
+    long getFailures() {
+        return failures;
+    }
+
+    /**
+     * Stops watching the file.
+     */
+    void close() {
+        closed = true;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void watch() {
+        while (!closed) {
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            check();
+        }
+    }
+
+    /**
+     * Reloads the file if it changed since the last check.  Only called by one
+     * thread at a time: the constructor, then the watcher thread.
+     */
+    private void check() {
+        long modified = file.lastModified();
+        long length = file.length();
+        if (modified == 0L || (modified == lastModified && length == lastLength))
+            return;
+        lastModified = modified;
+        lastLength = length;
+
+        ReconstructionParameters parameters;
+        try {
+            parameters = HTCCFileCalibrationProvider.read(file);
+        } catch (IOException e) {
+            failures++;
+            System.err.println("[HTCC-parameters] keeping version " +
+                               reconstruction.getParametersVersion() + ": " + e.getMessage());
+            return;
+        }
+        // Touching the file without changing it keeps the version
+        if (parameters.equals(reconstruction.getParameters()))
+            return;
+        long version = reconstruction.setParameters(parameters);
+        reloads++;
+        System.err.println("[HTCC-parameters] installed version " + version + " from " + file);
+    }
+}
@@ -0,0 +1,247 @@
+package org.jlab.rec.htcc;
+
+import java.util.Arrays;
+
+/**
+ * Bounded cache from the hit pattern of an event to the clusters it forms.
+ * <p>
+ * With 48 channels and a handful of hits per event the same patterns come
+ * back again and again.  Once every hit has a channel of its own (see
+ * <code>HTCCReconstruction.occupancyMask</code>), the choice of seeds and
+ * cluster members depends only on
+ * <ul>
+ * <li>the channels of the hits above threshold, in hit order,</li>
+ * <li>the order of the seed candidates by number of photoelectrons, and</li>
+ * <li>the outcome of each time comparison.</li>
+ * </ul>
+ * When the corrected times of all of these hits lie within
+ * <code>maxtimediff</code> of each other, every time comparison succeeds, so
+ * the first two items decide the clusters.  They are packed into one
+ * <code>long</code> key; the members of each cluster, in the order they were
+ * added, are packed into one <code>long</code> value.  A repeated pattern is
+ * rebuilt from the value, which leaves only the cluster sums and the quality
+ * cuts to compute.  The value holds every cluster of the pattern, also those
+ * after the first rejected one, because the <code>npeminclst</code> cut
+ * depends on the numbers of photoelectrons, which are not part of the key.
+ * Events with more than <code>MAX_HITS</code> hits or a wider time spread are
+ * clustered as usual.
+ * <p>
+ * Each event context owns its cache, so no locking is needed.  The table is
+ * direct mapped with a fixed number of slots and a colliding pattern replaces
+ * the previous one.  The cache is cleared whenever the context is given a
+ * different parameter snapshot.
+ * <p>
+ * The cache is off unless enabled with
+ * <code>HTCCReconstruction.setPatternCacheEnabled</code>, because building
+ * the key costs about as much as clustering a small event.  On the synthetic
+ * events of <code>HTCCReconstructionBenchmark</code>, with hit rates of 0.76,
+ * 0.62 and 0.62, <code>processEvent</code> took 626, 690 and 1857 ns per event
+ * without the cache and 1203, 895 and 1571 ns with it at low, nominal and
+ * high occupancy.  Under JMH (<code>HTCCReconstructionJmh.processEventCached</code>)
+ * the cache was not faster at any occupancy within the errors.  Measure on
+ * real hit patterns before enabling it.
+ */
+final class HTCCPatternCache {
+    // Largest number of hits of a cached pattern, 9 key bits and 4 value bits
+    // per hit
+    static final int MAX_HITS = 7;
+
+    private static final int SLOTS = 4096;
+
+    // Smallest gap kept between the time spread and maxtimediff, so that
+    // rounding in the cluster time average cannot change a comparison
+    private static final double TIME_MARGIN = 1e-6;
+
+    // Marks a stored value, since an event may form no cluster at all
+    private static final long PRESENT = 1L << 63;
+
+    private final long[] keys = new long[SLOTS];
+    private final long[] values = new long[SLOTS];
+    private ReconstructionParameters parameters;
+
+    // Hit indexes of the current pattern, and the position of the hit of
+    // each occupied channel in it
+    private final int[] patternHits = new int[MAX_HITS];
+    private final int[] channelPosition = new int[HTCCChannelTable.NUM_CHANNELS];
+    private int patternSize;
+
+    // Pattern being recorded by findClustersMasked, 0 if none
+    private long recordingKey;
+    private long recordingValue;
+
+    private long lookups;
+    private long hits;
+    private long ineligible;
+
+    /**
+     * Returns the key of the pattern of the event in the given context, or 0
+     * if the event cannot be cached.  The context must have passed
+     * <code>occupancyMask</code>.
+     * @param context the event context
+     * @return the pattern key or 0
+     */
+    long key(HTCCEventContext context) {
+        ReconstructionParameters parameters = context.parameters;
+        if (parameters != this.parameters) {
+            Arrays.fill(keys, 0L);
+            this.parameters = parameters;
+        }
+        HTCCChannelTable channels = parameters.channels;
+        int minSeedNphe = parameters.npheminhit >= parameters.npheminmax ?
+                          parameters.npheminhit + 1 : parameters.npheminmax;
+
+        int size = 0;
+        double minTime = Double.POSITIVE_INFINITY;
+        double maxTime = Double.NEGATIVE_INFINITY;
+        for (int hit=0; hit<context.numHits; ++hit) {
+            if (context.npheArray[hit] > parameters.npheminhit) {
+                if (size == MAX_HITS) {
+                    ineligible++;
+                    return 0L;
+                }
+                int channel = context.channelArray[hit];
+                double time = context.timeArray[hit] - channels.t0(channel);
+                minTime = Math.min(minTime, time);
+                maxTime = Math.max(maxTime, time);
+                channelPosition[channel] = size;
+                patternHits[size++] = hit;
+            }
+        }
+        if (size == 0 || !(maxTime - minTime + TIME_MARGIN <= parameters.maxtimediff)) {
+            ineligible++;
+            return 0L;
+        }
+        patternSize = size;
+
+        // Per hit in hit order: channel + 1 and the rank of the hit among the
+        // seed candidates, 0 if it cannot seed a cluster
+        long key = 0L;
+        for (int i=0; i<size; ++i) {
+            int nphe = context.npheArray[patternHits[i]];
+            int rank = 0;
+            if (nphe >= minSeedNphe && nphe > 0) {
+                rank = 1;
+                for (int j=0; j<size; ++j) {
+                    if (context.npheArray[patternHits[j]] > nphe)
+                        rank++;
+                }
+            }
+            int channel = context.channelArray[patternHits[i]];
+            key |= (long) ((channel + 1) | (rank << 6)) << (9*i);
+        }
+        return key;
+    }
+
+    /**
+     * Returns the value stored for the given key, or 0 if there is none.
+     * @param key a pattern key from <code>key</code>
+     * @return the packed clusters or 0
+     */
+    long lookup(long key) {
+        lookups++;
+        int slot = slot(key);
+        if (keys[slot] != key)
+            return 0L;
+        hits++;
+        return values[slot];
+    }
+
+    /**
+     * Starts recording the clusters of the pattern with the given key.
+     * @param key a pattern key from <code>key</code>
+     */
+    void startRecording(long key) {
+        recordingKey = key;
+        recordingValue = PRESENT;
+    }
+
+    boolean isRecording() {
+        return recordingKey != 0L;
+    }
+
+    /**
+     * Records a grown cluster of the pattern being recorded, whether or not it
+     * passes the quality cuts.
+     * @param context the event context
+     * @param cluster the cluster
+     */
+    void record(HTCCEventContext context, HTCCCluster cluster) {
+        long value = recordingValue;
+        int count = count(value);
+        for (int i=0; i<cluster.getNHitClust(); ++i) {
+            int position = channelPosition[cluster.getHitChannel(i)];
+            long entry = position | (i == 0 ? 8 : 0);
+            value |= entry << (4*count++);
+        }
+        recordingValue = (value & ~(7L << 60)) | ((long) count << 60);
+    }
+
+    /**
+     * Stores the recorded clusters and stops recording.
+     */
+    void finishRecording() {
+        int slot = slot(recordingKey);
+        keys[slot] = recordingKey;
+        values[slot] = recordingValue;
+        recordingKey = 0L;
+    }
+
+    /**
+     * Returns the number of hits of the cached clusters.
+     * @param value a stored value
+     * @return the number of hits
+     */
+    static int count(long value) {
+        return (int) (value >>> 60) & 7;
+    }
+
+    /**
+     * Returns the index in the event of the given hit of the cached clusters.
+     * @param value a stored value
+     * @param i the hit, from 0 to <code>count(value)</code>
+     * @return the hit index
+     */
+    int hit(long value, int i) {
+        return patternHits[(int) (value >>> (4*i)) & 7];
+    }
+
+    /**
+     * Returns whether the given hit of the cached clusters starts a cluster.
+     * @param value a stored value
+     * @param i the hit, from 0 to <code>count(value)</code>
+     * @return whether the hit is a seed
+     */
+    static boolean startsCluster(long value, int i) {
+        return ((value >>> (4*i)) & 8) != 0;
+    }
+
+    long getLookups() {
+        return lookups;
+    }
+
+    long getHits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of events whose pattern was not looked up because
+     * it has too many hits or too wide a time spread.
+     * @return the number of events not eligible for the cache
+     */
+    long getIneligible() {
+        return ineligible;
+    }
+
+    /**
+     * Returns the fraction of lookups that found their pattern.
+     * @return the hit rate, 0 before the first lookup
+     */
+    double getHitRate() {
+        return lookups == 0 ? 0.0 : (double) hits/lookups;
+    }
+
+    private static int slot(long key) {
+        long mixed = key * 0x9E3779B97F4A7C15L;
+        return (int) (mixed >>> 52) & (SLOTS - 1);
+    }
+}
@@ -1,9 +1,10 @@
 package org.jlab.rec.htcc;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import org.jlab.evio.clas12.EvioDataBank;
-import org.jlab.evio.clas12.EvioDataDictionary;
+import javax.management.JMException;
 import org.jlab.evio.clas12.EvioDataEvent;
 import org.jlab.evio.clas12.EvioSource;
 
@@ -15,83 +16,497 @@ import org.jlab.evio.clas12.EvioSource;
  * @author G. Gavalian
  */
 public class HTCCReconstruction {
-    // HTCC geometry parameters
-    private final ReconstructionParameters parameters;
+    // HTCC geometry parameters used unless an event is given its own, with
+    // their version; replaced as a whole by setParameters
+    private volatile ParameterSnapshot current;
     
-    // Raw HTCC data from the bank
-    private int[] hitnArray;
-    private int[] sectorArray;
-    private int[] ringArray;
-    private int[] halfArray;
-    private int[] npheArray;
-    private double[] timeArray;
-    private int[] ithetaArray;
-    private int[] iphiArray;
-    private int numHits;
+    // Source of the parameters of each run, or null
+    private final HTCCCalibrationProvider calibration;
     
-    // Data about the hit in the remaining hit list with the greatest number of
-    // photoelections. See findMaximumHit().
-    private int maxHitNumPhotoelectrons;
-    private int maxHitRemainingIndex;
-    private int maxHitRawDataIndex;
+    // Diagnostic trace, disabled unless requested; replaced as a whole by
+    // setTraceLevel
+    private volatile HTCCTrace trace;
+    
+    // Whether repeated hit patterns take their clusters from the pattern
+    // cache of the event context
+    private volatile boolean patternCache;
+    
+    // Counters and latency histograms of every context of this instance
+    private final HTCCMetrics metrics = new HTCCMetrics();
+    
+    // Whether processEvent times its stages
+    private volatile boolean stageTiming = true;
+    
+    // Whether the JDK Vector API is present, checked without loading
+    // HTCCVectorKernel
+    private static final boolean VECTOR_API_AVAILABLE = vectorApiAvailable();
+    
+    // Whether new instances use HTCCVectorKernel: only if the system property
+    // htcc.vectorKernel is true
+    private static final boolean VECTOR_KERNEL_DEFAULT = Boolean.getBoolean("htcc.vectorKernel");
+    
+    // Whether hit decoding and threshold filtering use HTCCVectorKernel
+    private volatile boolean vectorKernel = VECTOR_KERNEL_DEFAULT && VECTOR_API_AVAILABLE;
+    
+    // Per-thread scratch for processEvent(EvioDataEvent)
+    private final ThreadLocal<HTCCEventContext> contexts = new ThreadLocal<HTCCEventContext>() {
+        @Override
+        protected HTCCEventContext initialValue() {
+            return newContext();
+        }
+    };
     
     /**
-     * Initializes the HTCCReconstruction.
+     * Initializes the HTCCReconstruction.  The configuration is immutable
+     * apart from the parameters, which are swapped as a whole, so one instance
+     * may serve any number of threads.
      */
     public HTCCReconstruction() {
-        parameters = new ReconstructionParameters();
+        this(HTCCTrace.OFF);
+    }
+    
+    /**
+     * Initializes the HTCCReconstruction with a diagnostic trace.
+     * @param trace the trace receiving cluster and hit records
+     */
+    HTCCReconstruction(HTCCTrace trace) {
+        this(new ReconstructionParameters(), trace);
+    }
+    
+    /**
+     * Initializes the HTCCReconstruction with the given parameters.
+     * @param parameters the reconstruction parameters
+     * @param trace the trace receiving cluster and hit records
+     */
+    HTCCReconstruction(ReconstructionParameters parameters, HTCCTrace trace) {
+        this(parameters, null, trace);
+    }
+    
+    /**
+     * Initializes the HTCCReconstruction with default parameters and a source
+     * of per-run parameters, see <code>processEvent(EvioDataEvent, 
+     * HTCCEventContext, int)</code>.
+     * @param parameters the reconstruction parameters used by default
+     * @param calibration the source of the parameters of each run
+     * @param trace the trace receiving cluster and hit records
+     */
+    HTCCReconstruction(ReconstructionParameters parameters, HTCCCalibrationProvider calibration, HTCCTrace trace) {
+        this.current = new ParameterSnapshot(parameters, 1);
+        this.calibration = calibration;
+        this.trace = trace;
+    }
+    
+    /**
+     * Creates the per-event scratch for one thread.  A context may be reused
+     * for any number of events but must not be shared between threads.
+     * @return a new event context
+     */
+    public HTCCEventContext newContext() {
+        return new HTCCEventContext(current.parameters, metrics.newRecorder());
+    }
+    
+    /**
+     * Returns the metrics of all events processed so far by this instance.
+     * @return a snapshot of the metrics
+     */
+    HTCCMetrics.Snapshot getMetrics() {
+        return metrics.snapshot();
+    }
+    
+    /**
+     * Returns the diagnostic trace currently in use.
+     * @return the trace
+     */
+    HTCCTrace getTrace() {
+        return trace;
+    }
+    
+    /**
+     * Changes the level of the diagnostic trace.  The trace is replaced by
+     * one of the new level writing to the same output, see
+     * <code>HTCCTrace.withLevel</code>; events already being clustered may
+     * finish with the old one.
+     * @param level the new trace level
+     * @throws IllegalStateException if the trace is closed and the level is
+     *         not OFF
+     */
+    synchronized void setTraceLevel(HTCCTrace.Level level) {
+        trace = trace.withLevel(level);
+    }
+    
+    /**
+     * Turns the stage latency measurement of <code>processEvent</code> on or
+     * off.  It is on by default and costs a few clock reads per event; the
+     * event, hit and cluster counters are always kept.
+     * @param enabled whether stage latencies are measured
+     */
+    void setStageTimingEnabled(boolean enabled) {
+        stageTiming = enabled;
+    }
+    
+    /**
+     * Replaces the parameters used by <code>processEvent</code> unless an
+     * event is given its own.  Events already being clustered finish with the
+     * previous parameters; every event started afterwards uses the new ones.
+     * @param parameters the new parameter snapshot
+     * @return the version of the new parameters
+     */
+    public synchronized long setParameters(ReconstructionParameters parameters) {
+        if (parameters == null)
+            throw new IllegalArgumentException("parameters");
+        ParameterSnapshot snapshot = new ParameterSnapshot(parameters, current.version + 1);
+        current = snapshot;
+        return snapshot.version;
     }
     
     /**
-     * Clusters hits in the given event.
+     * Turns the pattern cache on or off, see <code>HTCCPatternCache</code>.
+     * The cache is off by default, since it is slower than clustering at low
+     * and nominal occupancy.  It does not change the clusters found, and it
+     * is bypassed while the trace records hits.
+     * @param enabled whether repeated hit patterns use the cache
+     */
+    public void setPatternCacheEnabled(boolean enabled) {
+        patternCache = enabled;
+    }
+    
+    public boolean isPatternCacheEnabled() {
+        return patternCache;
+    }
+    
+    /**
+     * Turns the SIMD kernel for hit decoding and threshold filtering on or
+     * off, see <code>HTCCVectorKernel</code>.  It gives the same results as
+     * the scalar loops but is not faster on HTCC events, so it is off unless
+     * the system property <code>htcc.vectorKernel</code> is
+     * <code>true</code>.  It stays off if the JVM was started without
+     * <code>--add-modules jdk.incubator.vector</code>.
+     * @param enabled whether to use the vector kernel
+     * @return whether the vector kernel is now used
+     */
+    public boolean setVectorKernelEnabled(boolean enabled) {
+        vectorKernel = enabled && VECTOR_API_AVAILABLE;
+        return vectorKernel;
+    }
+    
+    public boolean isVectorKernelEnabled() {
+        return vectorKernel;
+    }
+    
+    private static boolean vectorApiAvailable() {
+        try {
+            Class.forName("jdk.incubator.vector.IntVector");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+    
+    /**
+     * Returns the parameters currently used by <code>processEvent</code>.
+     * @return the parameter snapshot
+     */
+    ReconstructionParameters getParameters() {
+        return current.parameters;
+    }
+    
+    /**
+     * Returns the version of the parameters currently used by
+     * <code>processEvent</code>.  The parameters given at construction are
+     * version 1, and each call of <code>setParameters</code> adds one.
+     * @return the parameter version
+     */
+    public long getParametersVersion() {
+        return current.version;
+    }
+    
+    /**
+     * Clusters hits in the given event.  May be called from several threads
+     * at once; each thread uses its own event context.
      * @param event the event containing hits to cluster
      */
     public void processEvent(EvioDataEvent event) {
+        processEvent(event, contexts.get());
+    }
+    
+    /**
+     * Clusters hits in the given event using the given event context.
+     * @param event the event containing hits to cluster
+     * @param context the event context of the calling thread
+     */
+    public void processEvent(EvioDataEvent event, HTCCEventContext context) {
+        HTCCEvioAdapter adapter = new HTCCEvioAdapter(event);
+        process(adapter, adapter, context);
+    }
+    
+    /**
+     * Clusters hits in the given event with the parameters of its run.  The
+     * parameters come from the calibration provider given at construction.
+     * @param event the event containing hits to cluster
+     * @param context the event context of the calling thread
+     * @param run the run number of the event
+     * @throws IllegalStateException if there is no calibration provider or the
+     *         parameters of the run cannot be loaded
+     */
+    public void processEvent(EvioDataEvent event, HTCCEventContext context, int run) {
+        if (calibration == null)
+            throw new IllegalStateException("no calibration provider");
+        ReconstructionParameters runParameters;
+        try {
+            runParameters = calibration.getParameters(run);
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot load the parameters of run " + run, e);
+        }
+        HTCCEvioAdapter adapter = new HTCCEvioAdapter(event);
+        context.parametersVersion = 0;
+        process(adapter, adapter, context, runParameters);
+    }
+    
+    /**
+     * Clusters hits held in memory, without any EVIO bank.
+     * @param hits the hits of one event
+     * @param context the event context of the calling thread
+     * @return the clusters, owned by the context and reused for its next event
+     */
+    public HTCCClusterColumns process(HTCCHitSource hits, HTCCEventContext context) {
+        process(hits, null, context);
+        return context.result;
+    }
+    
+    /**
+     * Clusters the hits of one event and hands the clusters to a sink.
+     * @param hits the hits of one event
+     * @param sink receives the clusters, or null
+     * @param context the event context of the calling thread
+     */
+    public void process(HTCCHitSource hits, HTCCClusterSink sink, HTCCEventContext context) {
+        // Read the snapshot once, so the whole event sees one version
+        ParameterSnapshot snapshot = current;
+        context.parametersVersion = snapshot.version;
+        process(hits, sink, context, snapshot.parameters);
+    }
+    
+    /**
+     * Clusters every event of a block of hits.  The events are loaded and
+     * clustered one at a time by the same code as <code>process</code>, and
+     * their clusters are copied into the output block; what the batch shares
+     * is the parameter snapshot, the context and the call overhead, not the
+     * clustering work.  The per-event counters of the metrics are kept, but
+     * the stages are not timed and no flight recorder events are emitted, to
+     * keep the per-event overhead down.
+     * @param hits the hits of the events
+     * @param clusters receives the clusters of the events, replacing its
+     *        previous content
+     * @param context the event context of the calling thread
+     */
+    public void processBatch(HTCCHitBlock hits, HTCCClusterBlock clusters, HTCCEventContext context) {
+        ParameterSnapshot snapshot = current;
+        context.parameters = snapshot.parameters;
+        context.parametersVersion = snapshot.version;
+        
+        int numEvents = hits.getNumEvents();
+        int[] eventOffsets = hits.eventOffsets;
+        HTCCMetrics.Recorder recorder = context.metrics;
+        clusters.clear(numEvents, snapshot.version);
+        for (int event=0; event<numEvents; ++event) {
+            int first = eventOffsets[event];
+            int numHits = eventOffsets[event+1] - first;
+            loadHits(context, first, numHits, hits.sector, hits.ring, hits.half, hits.nphe, hits.time);
+            List<HTCCCluster> found = findClusters(context);
+            clusters.addEvent(found);
+            recorder.event(numHits, found.size());
+        }
+    }
+    
+    /**
+     * Clusters the hits of one event with the given parameters.
+     * @param hits the hits of one event
+     * @param sink receives the clusters, or null
+     * @param context the event context of the calling thread
+     * @param parameters the parameter snapshot used for the whole event
+     */
+    void process(HTCCHitSource hits, HTCCClusterSink sink, HTCCEventContext context, ReconstructionParameters parameters) {
+        context.parameters = parameters;
+        HTCCFlightEvents.Reconstruction flight = HTCCFlightEvents.beginReconstruction();
+        boolean timed = stageTiming;
+        long start = timed ? System.nanoTime() : 0L;
+        
         // Load the raw data about the event
-        readBankInput(event);
+        loadHits(context, hits);
+        long decoded = timed ? System.nanoTime() : 0L;
+        
+        // Place all of the hits into clusters
+        List<HTCCCluster> clusters = findClusters(context);
+        long clustered = timed ? System.nanoTime() : 0L;
+        
+        // Store the clusters as columns and pass them on
+        HTCCClusterColumns result = context.result;
+        result.fill(clusters, context.parametersVersion);
+        if (sink != null)
+            sink.write(result);
+        
+        HTCCMetrics.Recorder recorder = context.metrics;
+        if (timed) {
+            long end = System.nanoTime();
+            recorder.stage(HTCCMetrics.Stage.DECODE, decoded - start);
+            recorder.stage(HTCCMetrics.Stage.CLUSTER, clustered - decoded);
+            recorder.stage(HTCCMetrics.Stage.OUTPUT, end - clustered);
+            recorder.stage(HTCCMetrics.Stage.EVENT, end - start);
+        }
+        recorder.event(context.numHits, clusters.size());
+        if (flight != null)
+            HTCCFlightEvents.commit(flight, context, clusters.size());
+    }
+    
+    /**
+     * Clusters the hits most recently loaded into the given context by
+     * <code>loadHits</code>.
+     * @param context the event context
+     * @return the clusters found, in the order they were found; the list and
+     *         the clusters are reused by the next call with this context
+     */
+    List<HTCCCluster> findClusters(HTCCEventContext context) {
+        context.resetClusters();
+        // Read the trace once, so the per-hit loops see a plain field
+        context.trace = trace;
+        
+        // Use the occupancy mask when every hit above threshold has a
+        // channel of its own
+        long occupancy = occupancyMask(context);
+        // Connected components need a channel per hit as well
+        if (occupancy != -1L && context.parameters.clustering == ReconstructionParameters.ClusteringMode.CONNECTED)
+            return findClustersConnected(context, occupancy);
+        if (occupancy != -1L) {
+            if (patternCache && !context.trace.hits) {
+                HTCCPatternCache patterns = context.patternCache;
+                long key = patterns.key(context);
+                if (key != 0L) {
+                    long value = patterns.lookup(key);
+                    if (value != 0L)
+                        return replayClusters(context, value);
+                    patterns.startRecording(key);
+                }
+            }
+            return findClustersMasked(context, occupancy);
+        }
         
         // Initialize the remaining hits list
-        List<Integer> remainingHits = intiRemainingHitList();
+        HTCCHitList remainingHits = intiRemainingHitList(context);
         
         // Place all of the hits into clusters
-        List<HTCCCluster> clusters = new ArrayList();
+        List<HTCCCluster> clusters = context.clusters;
         HTCCCluster cluster;
-        while (remainingHits.size() > 0 && (cluster = findCluster(remainingHits)) != null)
+        while (remainingHits.size() > 0 && (cluster = findCluster(context, remainingHits)) != null)
             clusters.add(cluster);
         
-        // Push all of the clusters into the bank and print the results
-        fillBankResults(clusters, event);
+        return clusters;
     }
     
     /**
-     * Reads hit information from the given event out of the bank.
-     * @param event the event under analysis
+     * Loads the hits of one event from a hit source.
+     * @param context the event context receiving the hits
+     * @param hits the hits of the event
      */
-    void readBankInput(EvioDataEvent event) {
-        EvioDataBank bankDGTZ = (EvioDataBank) event.getBank("HTCC::dgtz");
-
-        if (bankDGTZ.rows() == 0)
-            return;
-        
-        hitnArray   = bankDGTZ.getInt("hitn");
-        sectorArray = bankDGTZ.getInt("sector");
-        ringArray   = bankDGTZ.getInt("ring");
-        halfArray   = bankDGTZ.getInt("half");
-        npheArray   = bankDGTZ.getInt("nphe");
-        timeArray   = bankDGTZ.getDouble("time");
+    void loadHits(HTCCEventContext context, HTCCHitSource hits) {
+        int numHits = hits.getNumHits();
         
+        // An event without hits must not be clustered with the hits of the
+        // previous event
+        if (numHits == 0) {
+            context.numHits = 0;
+            context.resetClusters();
+            return;
+        }
         
-        numHits = hitnArray.length;
+        loadHits(context, numHits,
+                 hits.getHitn(),
+                 hits.getSector(),
+                 hits.getRing(),
+                 hits.getHalf(),
+                 hits.getNphe(),
+                 hits.getTime());
+    }
+    
+    /**
+     * Loads raw hit columns as they appear in the HTCC::dgtz bank.  All of the
+     * arrays must have the same length.
+     * @param context the event context receiving the hits
+     * @param hitn the hit numbers
+     * @param sector the sector of each hit (1-6)
+     * @param ring the ring of each hit (1-4)
+     * @param half the half sector of each hit (1-2)
+     * @param nphe the number of photoelectrons of each hit
+     * @param time the time of each hit
+     */
+    void loadHits(HTCCEventContext context, int[] hitn, int[] sector, int[] ring, int[] half, int[] nphe, double[] time) {
+        loadHits(context, hitn.length, hitn, sector, ring, half, nphe, time);
+    }
+    
+    /**
+     * Loads the first <code>numHits</code> entries of raw hit columns, which
+     * may be longer.
+     * @param context the event context receiving the hits
+     * @param numHits the number of hits
+     * @param hitn the hit numbers
+     * @param sector the sector of each hit (1-6)
+     * @param ring the ring of each hit (1-4)
+     * @param half the half sector of each hit (1-2)
+     * @param nphe the number of photoelectrons of each hit
+     * @param time the time of each hit
+     */
+    void loadHits(HTCCEventContext context, int numHits, int[] hitn, int[] sector, int[] ring, int[] half, int[] nphe, double[] time) {
+        loadHits(context, 0, numHits, sector, ring, half, nphe, time);
+    }
+    
+    /**
+     * Loads the hits <code>first</code> to <code>first + numHits - 1</code> of
+     * raw hit columns holding several events.  The hits of an event starting
+     * at 0 are read in place; otherwise their photoelectrons and times are
+     * copied to buffers of the context, so that the clustering always finds
+     * the hits of the event at indexes 0 to <code>numHits - 1</code>.
+     * @param context the event context receiving the hits
+     * @param first the index of the first hit of the event
+     * @param numHits the number of hits
+     * @param sector the sector of each hit (1-6)
+     * @param ring the ring of each hit (1-4)
+     * @param half the half sector of each hit (1-2)
+     * @param nphe the number of photoelectrons of each hit
+     * @param time the time of each hit
+     */
+    void loadHits(HTCCEventContext context, int first, int numHits, int[] sector, int[] ring, int[] half, int[] nphe, double[] time) {
+        context.numHits = numHits;
+        context.resetClusters();
         
-        // Create and fill ithetaArray and iphiArray so that the itheta and iphi
-        // values are not calculated more than once
-        ithetaArray = new int[numHits];
-        iphiArray   = new int[numHits];
+        // Fill ithetaArray and iphiArray so that the itheta and iphi values are
+        // not calculated more than once; the arrays are reused and only grow
+        // for an event larger than any before
+        context.ensureCapacity(numHits);
+        if (first == 0) {
+            context.npheArray = nphe;
+            context.timeArray = time;
+        } else {
+            System.arraycopy(nphe, first, context.npheBuffer, 0, numHits);
+            System.arraycopy(time, first, context.timeBuffer, 0, numHits);
+            context.npheArray = context.npheBuffer;
+            context.timeArray = context.timeBuffer;
+        }
+        int[] ithetaArray  = context.ithetaArray;
+        int[] iphiArray    = context.iphiArray;
+        int[] channelArray = context.channelArray;
+        if (vectorKernel) {
+            HTCCVectorKernel.decode(first, numHits, sector, ring, half, ithetaArray, iphiArray, channelArray);
+            return;
+        }
         for (int hit=0; hit<numHits; ++hit) {
-            ithetaArray[hit] = ringArray[hit]-1;
-            int iphi = 2*sectorArray[hit] + halfArray[hit] - 3;
+            int raw = first + hit;
+            ithetaArray[hit] = ring[raw]-1;
+            int iphi = 2*sector[raw] + half[raw] - 3;
             iphi = (iphi == 0 ? iphi + 12 : iphi) - 1;
             iphiArray[hit] = iphi;
+            // -1 if the hit lies outside the detector
+            channelArray[hit] = HTCCChannelTable.channel(ithetaArray[hit], iphi);
         }
     }
     
@@ -99,14 +514,20 @@ public class HTCCReconstruction {
      * Returns a list of of the indexes of the hits whose number of 
      * photoelectrons surpasses the minimum number of photoelectrons specified 
      * by in <code>parameters</code>.
-     * @return a list of hit indexes
+     * @param context the event context
+     * @return a list of hit indexes, owned by the context
      */
-    List<Integer> intiRemainingHitList() {
-        List<Integer> remainingHits = new ArrayList();
+    HTCCHitList intiRemainingHitList(HTCCEventContext context) {
+        HTCCHitList remainingHits = context.remainingHits;
+        remainingHits.clear();
         
         // Find all hits above the photoelectron threshold
-        for (int hit=0; hit<numHits; ++hit) {
-            if (npheArray[hit] > parameters.npheminhit) {
+        if (vectorKernel) {
+            HTCCVectorKernel.selectAbove(context.npheArray, context.numHits, context.parameters.npheminhit, remainingHits);
+            return remainingHits;
+        }
+        for (int hit=0; hit<context.numHits; ++hit) {
+            if (context.npheArray[hit] > context.parameters.npheminhit) {
                 remainingHits.add(hit);
             }
         }
@@ -114,57 +535,358 @@ public class HTCCReconstruction {
         return remainingHits;
     }
     
+    /**
+     * Returns the mask of the channels holding a hit above the photoelectron
+     * threshold and fills <code>channelHit</code> of the context for them.
+     * Returns -1 if a hit lies outside the detector or two such hits share a
+     * channel, in which case the hits must be clustered through the remaining
+     * hits list.
+     * @param context the event context
+     * @return the channel occupancy mask or -1
+     */
+    long occupancyMask(HTCCEventContext context) {
+        long occupancy = 0L;
+        for (int hit=0; hit<context.numHits; ++hit) {
+            if (context.npheArray[hit] > context.parameters.npheminhit) {
+                int channel = context.channelArray[hit];
+                if (channel < 0)
+                    return -1L;
+                long bit = 1L << channel;
+                if ((occupancy & bit) != 0)
+                    return -1L;
+                occupancy |= bit;
+                context.channelHit[channel] = hit;
+            }
+        }
+        return occupancy;
+    }
+    
+    /**
+     * Clusters the hits of the given occupancy mask.  Gives the same clusters
+     * as repeated calls of <code>findCluster</code>: seeds are chosen with the
+     * same tie-breaking and neighbors are tested in increasing hit order, but
+     * finding the neighbors of a cluster hit takes a mask lookup instead of a
+     * scan of the remaining hits.
+     * @param context the event context
+     * @param occupancy the channels holding the remaining hits
+     * @return the clusters found, in the order they were found
+     */
+    List<HTCCCluster> findClustersMasked(HTCCEventContext context, long occupancy) {
+        ReconstructionParameters parameters = context.parameters;
+        HTCCTrace trace = context.trace;
+        HTCCChannelTable channels = parameters.channels;
+        List<HTCCCluster> clusters = context.clusters;
+        
+        // Order the possible seeds once: above the hit threshold and with at
+        // least npheminmax photoelectrons
+        int minSeedNphe = parameters.npheminhit >= parameters.npheminmax ? 
+                          parameters.npheminhit + 1 : parameters.npheminmax;
+        HTCCSeedQueue seeds = context.seeds;
+        seeds.build(context.npheArray, context.numHits, minSeedNphe);
+        HTCCPatternCache patterns = context.patternCache;
+        boolean record = patterns.isRecording();
+        // Set once a cluster is rejected; while recording a pattern the
+        // remaining clusters are still grown, for the cache only
+        boolean stopped = false;
+        
+        long remaining = occupancy;
+        while (remaining != 0L) {
+            HTCCFlightEvents.Cluster flight = stopped ? null : HTCCFlightEvents.beginCluster();
+            
+            // Take the seed, the first remaining hit with the most
+            // photoelectrons, skipping hits already absorbed by a cluster
+            int seedHit;
+            int seedChannel = -1;
+            while ((seedHit = seeds.poll()) >= 0) {
+                seedChannel = context.channelArray[seedHit];
+                if ((remaining & (1L << seedChannel)) != 0L)
+                    break;
+            }
+            if (seedHit < 0 || context.npheArray[seedHit] <= 0)
+                break;
+            remaining &= ~(1L << seedChannel);
+            
+            HTCCCluster cluster = context.newCluster();
+            addRawHit(context, cluster, seedHit);
+            
+            // Grow the cluster from each of its hits in turn
+            double clusterTime = cluster.getTime();
+            grow:
+            for (int currHit=0; currHit<cluster.getNHitClust(); ++currHit) {
+                int channel = cluster.getHitChannel(currHit);
+                long candidates = remaining & HTCCChannelTable.neighbors(channel);
+                while (candidates != 0L) {
+                    // Take the candidate that comes first in the hit list
+                    int testChannel = Long.numberOfTrailingZeros(candidates);
+                    for (long bits = candidates & (candidates - 1); bits != 0L; bits &= bits - 1) {
+                        int other = Long.numberOfTrailingZeros(bits);
+                        if (context.channelHit[other] < context.channelHit[testChannel])
+                            testChannel = other;
+                    }
+                    long bit = 1L << testChannel;
+                    candidates &= ~bit;
+                    
+                    int testHit = context.channelHit[testChannel];
+                    double time = context.timeArray[testHit] - channels.t0(testChannel);
+                    double timeDiff = Math.abs(time - clusterTime);
+                    boolean accepted = timeDiff <= parameters.maxtimediff;
+                    if (trace.hits)
+                        trace.hit(context.ithetaArray[testHit], context.iphiArray[testHit], context.npheArray[testHit], timeDiff, accepted);
+                    if (accepted) {
+                        remaining &= ~bit;
+                        addRawHit(context, cluster, testHit);
+                        clusterTime = cluster.getTime();
+                        if (parameters.earlyTermination && exceedsLimits(cluster, parameters))
+                            break grow;
+                    }
+                }
+            }
+            
+            if (record)
+                patterns.record(context, cluster);
+            if (stopped)
+                continue;
+            
+            // A rejected cluster ends the clustering, as in findCluster.  The
+            // npeminclst cut depends on more than the pattern, so a replay of
+            // the pattern may accept this cluster and need the ones after it.
+            if (!acceptCluster(context, cluster, flight)) {
+                if (!record)
+                    break;
+                stopped = true;
+                continue;
+            }
+            clusters.add(cluster);
+        }
+        if (record)
+            patterns.finishRecording();
+        return clusters;
+    }
+    
+    /**
+     * Clusters the hits of the given occupancy mask as connected components,
+     * see <code>ReconstructionParameters.ClusteringMode.CONNECTED</code>.
+     * <p>
+     * One pass over the occupied channels links each hit to its neighbors on
+     * higher channels that are within <code>maxtimediff</code> of it, with a
+     * union-find over the 48 channels.  Each component holding a hit that may
+     * seed a cluster then becomes one cluster with its hits added in channel
+     * order, so the clusters do not depend on the order of the hits; they are
+     * returned in seed order.  A component failing the quality cuts is
+     * dropped and clustering goes on.
+     * @param context the event context
+     * @param occupancy the channels holding the hits above threshold
+     * @return the clusters found, in seed order
+     */
+    List<HTCCCluster> findClustersConnected(HTCCEventContext context, long occupancy) {
+        ReconstructionParameters parameters = context.parameters;
+        HTCCChannelTable channels = parameters.channels;
+        List<HTCCCluster> clusters = context.clusters;
+        int[] parent = context.componentParent;
+        long[] members = context.componentMembers;
+        double[] channelTime = context.channelTime;
+        int[] channelHit = context.channelHit;
+        
+        for (long bits = occupancy; bits != 0L; bits &= bits - 1) {
+            int channel = Long.numberOfTrailingZeros(bits);
+            parent[channel] = channel;
+            members[channel] = 0L;
+            channelTime[channel] = context.timeArray[channelHit[channel]] - channels.t0(channel);
+        }
+        
+        // Link every pair of neighbors close enough in time, each pair once
+        for (long bits = occupancy; bits != 0L; bits &= bits - 1) {
+            int channel = Long.numberOfTrailingZeros(bits);
+            long later = HTCCChannelTable.neighbors(channel) & occupancy & (-2L << channel);
+            for (; later != 0L; later &= later - 1) {
+                int other = Long.numberOfTrailingZeros(later);
+                if (Math.abs(channelTime[other] - channelTime[channel]) <= parameters.maxtimediff)
+                    union(parent, channel, other);
+            }
+        }
+        for (long bits = occupancy; bits != 0L; bits &= bits - 1) {
+            int channel = Long.numberOfTrailingZeros(bits);
+            members[find(parent, channel)] |= 1L << channel;
+        }
+        
+        int minSeedNphe = parameters.npheminhit >= parameters.npheminmax ? 
+                          parameters.npheminhit + 1 : parameters.npheminmax;
+        HTCCSeedQueue seeds = context.seeds;
+        seeds.build(context.npheArray, context.numHits, minSeedNphe);
+        int seedHit;
+        while ((seedHit = seeds.poll()) >= 0) {
+            if (context.npheArray[seedHit] <= 0)
+                break;
+            int root = find(parent, context.channelArray[seedHit]);
+            long component = members[root];
+            if (component == 0L)
+                continue;
+            members[root] = 0L;
+            
+            // The size of a component is known before building it
+            if (parameters.earlyTermination && rejectComponent(context, component))
+                continue;
+            
+            HTCCFlightEvents.Cluster flight = HTCCFlightEvents.beginCluster();
+            HTCCCluster cluster = context.newCluster();
+            for (; component != 0L; component &= component - 1)
+                addRawHit(context, cluster, channelHit[Long.numberOfTrailingZeros(component)]);
+            
+            if (acceptCluster(context, cluster, flight))
+                clusters.add(cluster);
+        }
+        return clusters;
+    }
+    
+    /**
+     * Rejects a component that exceeds a size limit without building its
+     * cluster.  The rejection is counted but not traced.
+     * @param context the event context
+     * @param component the channels of the component
+     * @return whether the component was rejected
+     */
+    private boolean rejectComponent(HTCCEventContext context, long component) {
+        ReconstructionParameters parameters = context.parameters;
+        int ntheta = 0;
+        long phiMask = 0L;
+        for (int itheta=0; itheta<HTCCChannelTable.NUM_ITHETA; ++itheta) {
+            long ring = (component >>> (itheta*HTCCChannelTable.NUM_IPHI)) & ((1L << HTCCChannelTable.NUM_IPHI) - 1);
+            if (ring != 0L)
+                ntheta++;
+            phiMask |= ring;
+        }
+        boolean nhitOk   = Long.bitCount(component) <= parameters.nhitmaxclst;
+        boolean nthetaOk = ntheta <= parameters.nthetamaxclst;
+        boolean nphiOk   = Long.bitCount(phiMask) <= parameters.nphimaxclst;
+        if (nhitOk && nthetaOk && nphiOk)
+            return false;
+        context.rejectedClusters++;
+        context.metrics.rejected(false, !nthetaOk, !nphiOk, !nhitOk);
+        return true;
+    }
+    
+    private static int find(int[] parent, int channel) {
+        while (parent[channel] != channel) {
+            // Path halving
+            parent[channel] = parent[parent[channel]];
+            channel = parent[channel];
+        }
+        return channel;
+    }
+    
+    private static void union(int[] parent, int a, int b) {
+        int rootA = find(parent, a);
+        int rootB = find(parent, b);
+        // The lower channel becomes the root, which keeps the trees shallow
+        // as channels are linked in increasing order
+        if (rootA < rootB)
+            parent[rootB] = rootA;
+        else if (rootB < rootA)
+            parent[rootA] = rootB;
+    }
+    
+    /**
+     * Rebuilds the clusters of a pattern found in the pattern cache.  The hits
+     * are added in the order they were added when the pattern was clustered,
+     * and the quality cuts are applied again, stopping at the first rejected
+     * cluster, so the clusters are the same as those of
+     * <code>findClustersMasked</code>.  The cache holds every cluster of the
+     * pattern, also those after a cluster rejected when it was recorded,
+     * since a cluster failing <code>npeminclst</code> there may pass here.
+     * @param context the event context
+     * @param value the packed clusters from the pattern cache
+     * @return the clusters found, in the order they were found
+     */
+    List<HTCCCluster> replayClusters(HTCCEventContext context, long value) {
+        HTCCPatternCache patterns = context.patternCache;
+        List<HTCCCluster> clusters = context.clusters;
+        int count = HTCCPatternCache.count(value);
+        int i = 0;
+        while (i < count) {
+            HTCCFlightEvents.Cluster flight = HTCCFlightEvents.beginCluster();
+            HTCCCluster cluster = context.newCluster();
+            do {
+                addRawHit(context, cluster, patterns.hit(value, i++));
+            } while (i < count && !HTCCPatternCache.startsCluster(value, i));
+            
+            if (!acceptCluster(context, cluster, flight))
+                break;
+            clusters.add(cluster);
+        }
+        return clusters;
+    }
+    
+    /**
+     * Adds a hit from the raw data to the given cluster.
+     * @param context the event context
+     * @param cluster the cluster
+     * @param hit the index of the hit in the raw data
+     */
+    private void addRawHit(HTCCEventContext context, HTCCCluster cluster, int hit) {
+        HTCCChannelTable channels = context.parameters.channels;
+        int channel = context.channelArray[hit];
+        cluster.addHit(channels, channel, context.npheArray[hit], context.timeArray[hit] - channels.t0(channel));
+    }
+    
+    /**
+     * Applies the cluster quality cuts and traces the outcome.
+     * @param context the event context
+     * @param cluster the grown cluster
+     * @param flight the flight recorder event of the cluster, or null
+     * @return whether the cluster passes the cuts
+     */
+    private boolean acceptCluster(HTCCEventContext context, HTCCCluster cluster, HTCCFlightEvents.Cluster flight) {
+        ReconstructionParameters parameters = context.parameters;
+        //Check whether this cluster has nphe above threshold, size along theta and phi and total number of hits less than maximum:
+        boolean npeOk    = cluster.getNPheTot() >= parameters.npeminclst;
+        boolean nthetaOk = cluster.getNThetaClust() <= parameters.nthetamaxclst;
+        boolean nphiOk   = cluster.getNPhiClust() <= parameters.nphimaxclst;
+        boolean nhitOk   = cluster.getNHitClust() <= parameters.nhitmaxclst;
+        boolean accepted = npeOk && nthetaOk && nphiOk && nhitOk;
+        
+        HTCCTrace trace = context.trace;
+        if (trace.clusters)
+            trace.cluster(cluster, accepted);
+        if (!accepted) {
+            context.rejectedClusters++;
+            context.metrics.rejected(!npeOk, !nthetaOk, !nphiOk, !nhitOk);
+        }
+        if (flight != null)
+            HTCCFlightEvents.commit(flight, cluster, accepted);
+        
+        return accepted;
+    }
+    
     /**
      * Returns the next cluster or null if no clusters are left.
+     * @param context the event context
      * @param remainingHits the list of remaining hits
      * @return the next cluster or null if no clusters are left
      */
-    HTCCCluster findCluster(List<Integer> remainingHits) {
-        // Note:
-        // maxHitNumPhotoelectrons : the number of photoelectrons for the maximum hit
-        // maxHitRawDataIndex : the index of the hit in the raw data
-        // maxHitRemainingIndex : the index of the hit in the remaining hits list
+    HTCCCluster findCluster(HTCCEventContext context, HTCCHitList remainingHits) {
+        HTCCFlightEvents.Cluster flight = HTCCFlightEvents.beginCluster();
         
         // Find the hit from the list of remaining hits with the largest number 
         // of photoelectrons that also meets the threshold for the minimum 
         // number of photoelectrons specified by parameters.npheminmax
-        findMaximumHit(remainingHits);
-        System.out.printf("start clustering, number of hits total " + remainingHits.size() + " \n");
+        int maxHitRemainingIndex = findMaximumHit(context, remainingHits);
 
         // If a maximum hit was found:
-        if (maxHitNumPhotoelectrons > 0) {
+        if (maxHitRemainingIndex >= 0 && 
+            context.npheArray[remainingHits.get(maxHitRemainingIndex)] > 0) {
             
             // Remove the maximum hit from the list of remaining hits
-            remainingHits.remove(maxHitRemainingIndex);
-            
-            // Get Hit Data:
-            // Detector Indicies
-            int    itheta = ithetaArray[maxHitRawDataIndex];
-            int    iphi   = iphiArray[maxHitRawDataIndex];
-            // Numver of Photoelectrons
-            int    nphe   = maxHitNumPhotoelectrons;
-            // Hit Time
-            double time   = timeArray[maxHitRawDataIndex] - parameters.t0[itheta];
-            // Detector Coordinates (polar)
-            double theta  = parameters.theta0[itheta];
-            double phi    = parameters.phi0 + 2.0*parameters.dphi0*iphi;
-            // Detector Alignment Errors
-            double dtheta = parameters.thetaRange;
-            double dphi   = parameters.phiRange[itheta];
+            int maxHitRawDataIndex = remainingHits.remove(maxHitRemainingIndex);
             
-            // Create a new cluster and add the maximum hit
-            HTCCCluster cluster = new HTCCCluster();
-            cluster.addHit(itheta, iphi, nphe, time, theta, phi, dtheta, dphi);
+            // Create a new cluster and add the maximum hit; its coordinates,
+            // alignment errors and time offset come from the channel table
+            HTCCCluster cluster = context.newCluster();
+            addRawHit(context, cluster, maxHitRawDataIndex);
                     
             // Recursively grow the cluster by adding nearby hits
-            growCluster(cluster, remainingHits);
+            growCluster(context, cluster, remainingHits);
             
-            //Check whether this cluster has nphe above threshold, size along theta and phi and total number of hits less than maximum:
-            if (cluster.getNPheTot() >= parameters.npeminclst && 
-                cluster.getNThetaClust() <= parameters.nthetamaxclst && 
-                cluster.getNPhiClust() <= parameters.nphimaxclst && 
-                cluster.getNHitClust() <= parameters.nhitmaxclst) {
-                
+            if (acceptCluster(context, cluster, flight)) {
                 // Return the cluster
                 return cluster;
             }
@@ -177,100 +899,99 @@ public class HTCCReconstruction {
     /**
      * Finds the hit from the list of remaining hits with the largest number of
      * photoelectrons that also meets the threshold for the minimum number of
-     * photoelectrons specified in <code>parameters</code>.
-     * <p>
-     * Side effects:
-     * If a maximum hit was found with a number of photo electrons greater than 
-     * or equal to <code>parameters.npheminmax</code>, then:
-     * maxHitNumPhotoelectrons = the number of photoelectrons for the max hit
-     * maxHitRawDataIndex      = the index of the max hit in the bank data
-     * maxHitRemainingIndex    = the index of the max hit in the remaining hits list
-     * <p>
-     * If no remaining hit has a number of photoelectrons greater than or equal 
-     * to <code>parameters.npheminmax</code>, then:
-     * maxHitNumPhotoelectrons = -1
-     * maxHitRawDataIndex      = -1
-     * maxHitRemainingIndex    = -1
+     * photoelectrons specified in <code>parameters</code>.  Of several hits
+     * with the same number of photoelectrons the first one is returned.
      * 
+     * @param context the event context
      * @param remainingHits the list of remaining hits
+     * @return the index of the max hit in the remaining hits list, or -1 if no
+     *         remaining hit has a number of photoelectrons greater than or 
+     *         equal to <code>parameters.npheminmax</code>
      */
-    void findMaximumHit(List<Integer> remainingHits) {
-        maxHitNumPhotoelectrons = -1;
-        maxHitRemainingIndex = -1;
-        maxHitRawDataIndex = -1;
+    int findMaximumHit(HTCCEventContext context, HTCCHitList remainingHits) {
+        int maxHitNumPhotoelectrons = -1;
+        int maxHitRemainingIndex = -1;
         for (int hit=0; hit<remainingHits.size(); ++hit) {
             int hitIndex = remainingHits.get(hit);
-            int numPhotoElectrons = npheArray[hitIndex];
-            if (numPhotoElectrons >= parameters.npheminmax && 
+            int numPhotoElectrons = context.npheArray[hitIndex];
+            if (numPhotoElectrons >= context.parameters.npheminmax && 
                 numPhotoElectrons > maxHitNumPhotoelectrons) {
                 maxHitNumPhotoelectrons = numPhotoElectrons;
                 maxHitRemainingIndex = hit;
-                maxHitRawDataIndex = hitIndex;
             }
         }
+        return maxHitRemainingIndex;
+    }
+    
+    /**
+     * Returns whether the given cluster exceeds one of the size limits, which
+     * adding hits can only make worse.
+     * @param cluster the cluster
+     * @param parameters the reconstruction parameters
+     * @return whether the cluster fails nhitmaxclst, nthetamaxclst or
+     *         nphimaxclst
+     */
+    private static boolean exceedsLimits(HTCCCluster cluster, ReconstructionParameters parameters) {
+        return cluster.getNHitClust() > parameters.nhitmaxclst ||
+               cluster.getNThetaClust() > parameters.nthetamaxclst ||
+               cluster.getNPhiClust() > parameters.nphimaxclst;
     }
     
     /**
      * Grows the given cluster by adding nearby hits from the remaining hits 
      * list.  As hits are added to the cluster they are removed from the 
-     * remaining hits list.
+     * remaining hits list.  With <code>earlyTermination</code> growth stops
+     * as soon as the cluster exceeds a size limit.
+     * @param context the event context
      * @param cluster the cluster to grow
      * @param remainingHits the list of indexes of the remaining hits
      */
-    void growCluster(HTCCCluster cluster, List<Integer> remainingHits) {
+    void growCluster(HTCCEventContext context, HTCCCluster cluster, HTCCHitList remainingHits) {
+        ReconstructionParameters parameters = context.parameters;
+        HTCCTrace trace = context.trace;
+        HTCCChannelTable channels = parameters.channels;
         // Get the average time of the cluster
         double clusterTime = cluster.getTime();
         // For each hit in the cluster:
-        System.out.printf("start growing \n");
         for (int currHit=0; currHit<cluster.getNHitClust(); ++currHit) {
             // Get the hits coordinates
             int ithetaCurr = cluster.getHitITheta(currHit);
             int iphiCurr   = cluster.getHitIPhi(currHit);
-             System.out.printf(" cluster cluster.getNHitClust() " + cluster.getNHitClust() + "\n");
-             System.out.printf(" cluster phi " + iphiCurr + "\n");
-             System.out.printf(" cluster theta " + ithetaCurr + "\n");
-             
              
             // For each of the remaining hits:
             int hit = 0;
-            System.out.printf(" hits remaining " + remainingHits.size() + "\n");
-
             while (hit < remainingHits.size()) {
                 // Get the index of the remaining hit (and call it a test hit)
-
                 int testHit = remainingHits.get(hit);
                 // Get the coordinates of the test hit
-                int ithetaTest = ithetaArray[testHit];
-                int iphiTest   = iphiArray[testHit];
-                System.out.printf(" hits remaining inside" + remainingHits.size() + "\n");
-
-                 System.out.printf(" current phi " + iphiTest + "\n");
-                System.out.printf(" current theta " + ithetaTest + "\n");
+                int ithetaTest = context.ithetaArray[testHit];
+                int iphiTest   = context.iphiArray[testHit];
              
                 // Find the distance
                 int ithetaDiff = Math.abs(ithetaTest - ithetaCurr);
                 int iphiDiff = Math.min((12+iphiTest-iphiCurr)%12, (12+iphiCurr-iphiTest)%12);
                 // Find the difference in time
-                double time = timeArray[testHit] - parameters.t0[ithetaTest];
+                // A hit outside the detector has no channel and, as before
+                // channel offsets, is corrected by its ring offset
+                int testChannel = context.channelArray[testHit];
+                double time = context.timeArray[testHit] -
+                              (testChannel >= 0 ? channels.t0(testChannel) : parameters.t0[ithetaTest]);
                 double timeDiff = Math.abs(time - clusterTime);
                 // If the test hit is close enough in space and time
-                if ((ithetaDiff == 1 || iphiDiff == 1) &&
-                    (ithetaDiff + iphiDiff <= 2)&&
-                    (timeDiff <= parameters.maxtimediff)) {
+                boolean neighbor = (ithetaDiff == 1 || iphiDiff == 1) &&
+                                   (ithetaDiff + iphiDiff <= 2);
+                if (neighbor && trace.hits)
+                    trace.hit(ithetaTest, iphiTest, context.npheArray[testHit], timeDiff, timeDiff <= parameters.maxtimediff);
+                if (neighbor && (timeDiff <= parameters.maxtimediff)) {
                     // Remove the hit from the remaining hits list
                     remainingHits.remove(hit);
-                    // Get the Number of Photoelectrons
-                    int    npheTest   = npheArray[testHit];
-                    // Get the Detector Coordinates (polar)
-                    double thetaTest  = parameters.theta0[ithetaTest];
-                    double phiTest    = parameters.phi0 + 2.0*parameters.dphi0*iphiTest;
-                    // Get the Detector Alignment Errors
-                    double dthetaTest = parameters.thetaRange;
-                    double dphiTest   = parameters.phiRange[ithetaTest];
                     // Add the hit to the cluster
-                    cluster.addHit(ithetaTest, iphiTest, npheTest, time, thetaTest, phiTest, dthetaTest, dphiTest);
+                    addRawHit(context, cluster, testHit);
                     // Get the new average time of the cluster
                     clusterTime = cluster.getTime();
+                    // Stop once the cluster can no longer pass the cuts
+                    if (parameters.earlyTermination && exceedsLimits(cluster, parameters))
+                        return;
                 } else {
                     // Go to the next hit in the remaining hits list
                     hit++;
@@ -280,102 +1001,16 @@ public class HTCCReconstruction {
     }
     
     /**
-     * Pushes 
-     * @param clusters the output clusters
-     * @param event the event under analysis
+     * Parameters together with their version, so that both are swapped in a
+     * single volatile write.
      */
-    void fillBankResults(List<HTCCCluster> clusters, EvioDataEvent event) {
-        // Determine the size of the output
-        int size = clusters.size();
-        
-        if (size == 0)
-            return;
-        
-        // Create the output bank
-        EvioDataDictionary dict = (EvioDataDictionary) event.getDictionary();
-        EvioDataBank bankClusters = (EvioDataBank) dict.createBank("HTCCRec::clusters", size);
-
-        // Fill the output bank
-        for (int i = 0; i < size; ++i) {
-            HTCCCluster cluster = clusters.get(i);
-            bankClusters.setInt("nhits", i, cluster.getNHitClust());
-            bankClusters.setInt("ntheta", i, cluster.getNThetaClust());
-            bankClusters.setInt("nphi", i, cluster.getNPhiClust());
-            bankClusters.setInt("mintheta", i, cluster.getIThetaMin());
-            bankClusters.setInt("maxtheta", i, cluster.getIThetaMax());
-            bankClusters.setInt("minphi", i, cluster.getIPhiMin());
-            bankClusters.setInt("maxphi", i, cluster.getIPhiMax());
-            bankClusters.setInt("nphe", i, cluster.getNPheTot());
-            bankClusters.setDouble("time", i, cluster.getTime());
-            bankClusters.setDouble("theta", i, cluster.getTheta());
-            bankClusters.setDouble("phi", i, cluster.getPhi());
-            bankClusters.setDouble("dtheta", i, cluster.getDTheta());
-            bankClusters.setDouble("dphi", i, cluster.getDPhi());
-        }
-        
-        // Push the results into the bank
-        event.appendBanks(bankClusters);
-        
-        // Display the results
-    //    System.out.printf("\n[Detector-HTCC] >>>> zhopa huj Input hits %8d Output Clusters %8d\n", numHits, clusters.size());
-        bankClusters.show();
-    }
-    
-    
-    /**
-     * Contains the HTCC reconstruction parameters.
-     */
-    class ReconstructionParameters {
-        double theta0[];
-        double dtheta0[];
-        double thetaRange;
-        double phiRange[];
-        double phi0;
-        double dphi0;
-        int npeminclst;
-        int npheminmax;
-        int npheminhit;
-        int nhitmaxclst;
-        int nthetamaxclst;
-        int nphimaxclst;
-        double maxtimediff;
-        double t0[];
-        
-        /**
-         * Initialize reconstruction parameters with sensible defaults.
-         */
-        ReconstructionParameters() {
-            theta0 = new double[] { 8.75, 16.25, 23.75, 31.25 };
-            dtheta0 = new double[] { 3.75, 3.75, 3.75, 3.75 } ;
-            phiRange = new double[]{4, 2.4, 1.6, 1.2};
-
-            for (int i=0; i<4; ++i) {
-                theta0[i] = Math.toRadians(theta0[i]);
-                dtheta0[i] = Math.toRadians(dtheta0[i]);
-                phiRange[i] = Math.toRadians(phiRange[i]);
-               
-            }
-            thetaRange = Math.toRadians(1.2);
-            phi0 = Math.toRadians(15.0);
-            dphi0 = Math.toRadians(15.0);
-            npeminclst = 1;
-            npheminmax = 1;
-            npheminhit = 1;
-            nhitmaxclst = 4;
-            nthetamaxclst = 2;
-            nphimaxclst = 2;
-            maxtimediff = 2;
-            t0 = new double[] { 11.553, 11.943, 12.339, 12.75 };
-        }
+    private static final class ParameterSnapshot {
+        final ReconstructionParameters parameters;
+        final long version;
         
-        /**
-         * Initialize reconstruction parameters from a packed string.
-         * @param packed_string the packed string
-         * @throws UnsupportedOperationException
-         */
-        ReconstructionParameters(String packed_string) {
-            // TODO if necessary
-            throw new UnsupportedOperationException();
+        ParameterSnapshot(ReconstructionParameters parameters, long version) {
+            this.parameters = parameters;
+            this.version = version;
         }
     }
     
@@ -385,18 +1020,73 @@ public class HTCCReconstruction {
      * The environment variable $CLAS12DIR must be set and point to a directory 
      * that contains lib/bankdefs/clas12/<dictionary file name>.xml
      *
-     * @param args ignored
+     * With the system property <code>htcc.batch</code> set to a number of
+     * events, the input file is memory mapped and read in batches of that
+     * many events by <code>HTCCMappedEvioReader</code> instead, which needs no
+     * dictionary.  The clusters are then written by an
+     * <code>HTCCClusterWriter</code> to the file named by the system property
+     * <code>htcc.output</code>, if set.
+     *
+     * The trace is off unless the flag <code>--trace</code> (cluster
+     * records) or <code>--trace=HITS</code> is given, anywhere among the
+     * arguments.
+     *
+     * @param args optional number of worker threads, maximum number of events
+     *             in flight and parameter file reloaded whenever it changes,
+     *             and the trace flag
      */
     public static void main(String[] args){
         String inputfile = "out.ev";
+        HTCCTrace.Level traceLevel = HTCCTrace.Level.OFF;
+        List<String> positional = new ArrayList<String>();
+        for (String arg : args) {
+            if (arg.equals("--trace"))
+                traceLevel = HTCCTrace.Level.CLUSTERS;
+            else if (arg.startsWith("--trace="))
+                traceLevel = HTCCTrace.Level.valueOf(arg.substring("--trace=".length()).toUpperCase());
+            else
+                positional.add(arg);
+        }
+        int numThreads = positional.size() > 0 ? Integer.parseInt(positional.get(0)) : Runtime.getRuntime().availableProcessors();
+        int queueCapacity = positional.size() > 1 ? Integer.parseInt(positional.get(1)) : 4*numThreads;
+        int eventsPerBatch = Integer.getInteger("htcc.batch", 0);
         
-        EvioSource reader = new EvioSource();
-        reader.open(inputfile);
-        
-        HTCCReconstruction htccRec = new HTCCReconstruction();
-        while(reader.hasEvent()){
-            EvioDataEvent event = (EvioDataEvent) reader.getNextEvent();
-            htccRec.processEvent(event);
+        HTCCTrace trace = new HTCCTrace(traceLevel, System.out);
+        HTCCReconstruction htccRec = new HTCCReconstruction(trace);
+        HTCCParameterWatcher watcher = positional.size() > 2 ?
+            new HTCCParameterWatcher(htccRec, new File(positional.get(2)), 1000) : null;
+        try {
+            HTCCReconstructionMonitor.register(htccRec, inputfile);
+        } catch (JMException e) {
+            System.err.println("[HTCC] cannot register the JMX monitor: " + e.getMessage());
+        }
+        HTCCParallelDriver driver = new HTCCParallelDriver(htccRec, numThreads, queueCapacity);
+        if (eventsPerBatch > 0) {
+            try {
+                String outputfile = System.getProperty("htcc.output");
+                HTCCClusterWriter writer = outputfile == null ? null :
+                    new HTCCClusterWriter(new File(outputfile), Math.max(eventsPerBatch, 1024), 4);
+                HTCCMappedEvioReader reader = new HTCCMappedEvioReader(new File(inputfile));
+                try {
+                    driver.run(reader, eventsPerBatch, writer);
+                } finally {
+                    reader.close();
+                    if (writer != null)
+                        writer.close();
+                }
+                System.out.println("[HTCC] " + reader.getEventsRead() + " events read, " +
+                                   reader.getEventsSkipped() + " without HTCC hits");
+            } catch (IOException e) {
+                System.err.println("[HTCC] cannot read " + inputfile + ": " + e.getMessage());
+            }
+        } else {
+            EvioSource reader = new EvioSource();
+            reader.open(inputfile);
+            driver.run(reader, null);
         }
+        if (watcher != null)
+            watcher.close();
+        htccRec.getTrace().close();
+        System.out.print(htccRec.getMetrics());
     }
 }
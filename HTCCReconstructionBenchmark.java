@@ -0,0 +1,454 @@
+package org.jlab.rec.htcc;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Offline benchmark for HTCC reconstruction.
+ * <p>
+ * Synthetic events are generated in memory at low, nominal and high HTCC
+ * occupancy and fed to the reconstruction through <code>loadHits</code>, so no
+ * data files or EVIO dictionary are needed.  Each stage is timed in isolation
+ * and the whole clustering chain is timed end to end.  Finally the batch
+ * entry point is compared with per-event calls at batch sizes from 1 to 10000,
+ * the connected components clustering mode with the legacy one, and the
+ * vector kernel for hit decoding and threshold filtering with the scalar
+ * loops; the vector kernel needs <code>--add-modules jdk.incubator.vector</code>.
+ * <p>
+ * This is a quick single-run report with its own timing loop.  Numbers to
+ * compare come from <code>HTCCReconstructionJmh</code>, which runs the same
+ * events under JMH with forks, warmup and error bounds.
+ * <p>
+ * Usage: <code>HTCCReconstructionBenchmark [events] [warmup passes] [measured passes]</code>
+ */
+public class HTCCReconstructionBenchmark {
+
+    /**
+     * HTCC occupancy scenarios given as the mean number of hits per event.
+     */
+    enum Occupancy {
+        LOW(2), NOMINAL(6), HIGH(24);
+
+        final int meanHits;
+
+        Occupancy(int meanHits) {
+            this.meanHits = meanHits;
+        }
+    }
+
+    /**
+     * Raw hit columns of one synthetic event, laid out like HTCC::dgtz.
+     */
+    static class SyntheticEvent implements HTCCHitSource {
+        final int[] hitn;
+        final int[] sector;
+        final int[] ring;
+        final int[] half;
+        final int[] nphe;
+        final double[] time;
+
+        SyntheticEvent(int numHits) {
+            hitn   = new int[numHits];
+            sector = new int[numHits];
+            ring   = new int[numHits];
+            half   = new int[numHits];
+            nphe   = new int[numHits];
+            time   = new double[numHits];
+        }
+
+        int size() {
+            return hitn.length;
+        }
+
+        @Override
+        public int getNumHits() {
+            return hitn.length;
+        }
+
+        @Override
+        public int[] getHitn() {
+            return hitn;
+        }
+
+        @Override
+        public int[] getSector() {
+            return sector;
+        }
+
+        @Override
+        public int[] getRing() {
+            return ring;
+        }
+
+        @Override
+        public int[] getHalf() {
+            return half;
+        }
+
+        @Override
+        public int[] getNphe() {
+            return nphe;
+        }
+
+        @Override
+        public double[] getTime() {
+            return time;
+        }
+    }
+
+    /**
+     * Generates reproducible events with the given occupancy.  Hits are placed
+     * on distinct channels, photoelectron counts follow a falling spectrum and
+     * times are spread around the nominal ring offsets.
+     * @param occupancy the occupancy scenario
+     * @param numEvents the number of events to generate
+     * @param seed the random seed
+     * @return the generated events
+     */
+    static SyntheticEvent[] generate(Occupancy occupancy, int numEvents, long seed) {
+        final double[] t0 = { 11.553, 11.943, 12.339, 12.75 };
+        Random random = new Random(seed);
+        SyntheticEvent[] events = new SyntheticEvent[numEvents];
+        int[] channels = new int[48];
+        for (int ev=0; ev<numEvents; ++ev) {
+            // Poisson distributed multiplicity, limited to the channel count
+            int numHits = 0;
+            double p = Math.exp(-occupancy.meanHits);
+            double product = random.nextDouble();
+            while (product > p && numHits < 48) {
+                product *= random.nextDouble();
+                numHits++;
+            }
+
+            // Pick distinct channels with a partial Fisher-Yates shuffle
+            for (int ch=0; ch<48; ++ch)
+                channels[ch] = ch;
+            SyntheticEvent event = new SyntheticEvent(numHits);
+            for (int hit=0; hit<numHits; ++hit) {
+                int pick = hit + random.nextInt(48 - hit);
+                int channel = channels[pick];
+                channels[pick] = channels[hit];
+                channels[hit] = channel;
+
+                int ring = channel / 12 + 1;
+                int sectorHalf = channel % 12;
+                event.hitn[hit]   = hit + 1;
+                event.sector[hit] = sectorHalf / 2 + 1;
+                event.half[hit]   = sectorHalf % 2 + 1;
+                event.ring[hit]   = ring;
+                event.nphe[hit]   = (int) (-8.0*Math.log(1.0 - random.nextDouble()));
+                event.time[hit]   = t0[ring-1] + random.nextGaussian();
+            }
+            events[ev] = event;
+        }
+        return events;
+    }
+
+    /**
+     * Accumulated timing of one stage.
+     */
+    static class StageTimer {
+        final String name;
+        long nanos;
+        long calls;
+
+        StageTimer(String name) {
+            this.name = name;
+        }
+
+        void reset() {
+            nanos = 0;
+            calls = 0;
+        }
+
+        void add(long elapsed) {
+            nanos += elapsed;
+            calls++;
+        }
+
+        double nanosPerCall() {
+            return calls == 0 ? 0.0 : (double) nanos / calls;
+        }
+    }
+
+    private final HTCCReconstruction reconstruction;
+    private final HTCCEventContext context;
+    // Same reconstruction with the pattern cache turned on
+    private final HTCCReconstruction cachedReconstruction;
+    private final HTCCEventContext cachedContext;
+    private final StageTimer readTimer    = new StageTimer("loadHits");
+    private final StageTimer remainTimer  = new StageTimer("intiRemainingHitList");
+    private final StageTimer clusterTimer = new StageTimer("findCluster");
+    private final StageTimer maskTimer    = new StageTimer("findClustersMasked");
+    private final StageTimer endToEnd     = new StageTimer("processEvent");
+    private final StageTimer cachedTimer  = new StageTimer("processEvent (cached)");
+
+    // Consumed results, so that the JIT cannot discard the work
+    private long sink;
+
+    HTCCReconstructionBenchmark(HTCCReconstruction reconstruction) {
+        this.reconstruction = reconstruction;
+        this.context = reconstruction.newContext();
+        this.cachedReconstruction = new HTCCReconstruction(reconstruction.getParameters(), HTCCTrace.OFF);
+        this.cachedReconstruction.setPatternCacheEnabled(true);
+        this.cachedContext = cachedReconstruction.newContext();
+    }
+
+    /**
+     * Runs every stage over all events once.
+     * @param events the events to process
+     */
+    void pass(SyntheticEvent[] events) {
+        for (SyntheticEvent event : events) {
+            // Stage: decode of the bank columns
+            long start = System.nanoTime();
+            reconstruction.loadHits(context, event.hitn, event.sector, event.ring, event.half, event.nphe, event.time);
+            long end = System.nanoTime();
+            readTimer.add(end - start);
+
+            // Stage: threshold filtering into the remaining hits list
+            start = System.nanoTime();
+            HTCCHitList remainingHits = reconstruction.intiRemainingHitList(context);
+            end = System.nanoTime();
+            remainTimer.add(end - start);
+
+            // Stage: seed search and cluster growth
+            start = System.nanoTime();
+            HTCCCluster cluster;
+            while (remainingHits.size() > 0 && (cluster = reconstruction.findCluster(context, remainingHits)) != null)
+                sink += cluster.getNHitClust();
+            end = System.nanoTime();
+            clusterTimer.add(end - start);
+
+            // Stage: the same clustering through the occupancy mask
+            start = System.nanoTime();
+            long occupancy = reconstruction.occupancyMask(context);
+            if (occupancy != -1L)
+                sink += reconstruction.findClustersMasked(context, occupancy).size();
+            end = System.nanoTime();
+            maskTimer.add(end - start);
+
+            // End to end, excluding the EVIO bank access
+            start = System.nanoTime();
+            reconstruction.loadHits(context, event.hitn, event.sector, event.ring, event.half, event.nphe, event.time);
+            sink += reconstruction.findClusters(context).size();
+            end = System.nanoTime();
+            endToEnd.add(end - start);
+
+            // End to end with the pattern cache
+            start = System.nanoTime();
+            cachedReconstruction.loadHits(cachedContext, event.hitn, event.sector, event.ring, event.half, event.nphe, event.time);
+            sink += cachedReconstruction.findClusters(cachedContext).size();
+            end = System.nanoTime();
+            cachedTimer.add(end - start);
+        }
+    }
+
+    void reset() {
+        readTimer.reset();
+        remainTimer.reset();
+        clusterTimer.reset();
+        maskTimer.reset();
+        endToEnd.reset();
+        cachedTimer.reset();
+    }
+
+    void report(Occupancy occupancy, SyntheticEvent[] events) {
+        long hits = 0;
+        for (SyntheticEvent event : events)
+            hits += event.size();
+        System.out.printf("%-8s mean hits/event %6.2f%n", occupancy, (double) hits / events.length);
+        for (StageTimer timer : new StageTimer[] { readTimer, remainTimer, clusterTimer, maskTimer, endToEnd, cachedTimer })
+            System.out.printf("    %-22s %12.1f ns/event%n", timer.name, timer.nanosPerCall());
+        HTCCPatternCache patterns = cachedContext.getPatternCache();
+        System.out.printf("    pattern cache hit rate %.3f, %d events not cacheable%n",
+                          patterns.getHitRate(), patterns.getIneligible());
+    }
+
+    // Batch sizes compared by compareBatch
+    private static final int[] BATCH_SIZES = { 1, 10, 100, 1000, 10000 };
+
+    /**
+     * Times the events clustered one call at a time through
+     * <code>process</code>, and in blocks of each batch size through
+     * <code>processBatch</code>.  The blocks are built before timing starts.
+     * @param events the events to process
+     * @param passes the number of timed passes, after as many warmup passes
+     */
+    void compareBatch(SyntheticEvent[] events, int passes) {
+        StageTimer perEvent = new StageTimer("process");
+        for (int pass=0; pass<2*passes; ++pass) {
+            if (pass == passes)
+                perEvent.reset();
+            for (SyntheticEvent event : events) {
+                long start = System.nanoTime();
+                sink += reconstruction.process(event, context).size();
+                perEvent.add(System.nanoTime() - start);
+            }
+        }
+        System.out.printf("    %-22s %12.1f ns/event%n", perEvent.name, perEvent.nanosPerCall());
+
+        HTCCClusterBlock clusters = new HTCCClusterBlock();
+        for (int batchSize : BATCH_SIZES) {
+            if (batchSize > events.length)
+                break;
+            HTCCHitBlock[] blocks = new HTCCHitBlock[events.length / batchSize];
+            for (int b=0; b<blocks.length; ++b) {
+                blocks[b] = new HTCCHitBlock();
+                for (int ev=b*batchSize; ev<(b+1)*batchSize; ++ev) {
+                    SyntheticEvent event = events[ev];
+                    for (int hit=0; hit<event.size(); ++hit)
+                        blocks[b].add(event.hitn[hit], event.sector[hit], event.ring[hit], event.half[hit], event.nphe[hit], event.time[hit]);
+                    blocks[b].endEvent();
+                }
+            }
+            long nanos = 0;
+            for (int pass=0; pass<2*passes; ++pass) {
+                long start = System.nanoTime();
+                for (HTCCHitBlock block : blocks) {
+                    reconstruction.processBatch(block, clusters, context);
+                    sink += clusters.getClusters().size();
+                }
+                if (pass >= passes)
+                    nanos += System.nanoTime() - start;
+            }
+            System.out.printf("    %-22s %12.1f ns/event%n", "processBatch(" + batchSize + ")",
+                              (double) nanos / ((long) passes*blocks.length*batchSize));
+        }
+    }
+
+    /**
+     * Times <code>findClusters</code> in the legacy and the connected
+     * components clustering modes, and reports how often they agree: the
+     * fraction of events with the same clusters, and the fraction of legacy
+     * clusters that the connected mode also finds.  Clusters are compared by
+     * their hit count, index ranges and number of photoelectrons.
+     * @param events the events to process
+     * @param passes the number of timed passes, after as many warmup passes
+     */
+    void compareModes(SyntheticEvent[] events, int passes) {
+        ReconstructionParameters legacy = reconstruction.getParameters();
+        HTCCReconstruction connected = new HTCCReconstruction(
+            new ReconstructionParameters(legacy.pack() + ";clustering=CONNECTED"), HTCCTrace.OFF);
+        HTCCEventContext connectedContext = connected.newContext();
+        StageTimer legacyTimer = new StageTimer("findClusters LEGACY");
+        StageTimer connectedTimer = new StageTimer("findClusters CONNECTED");
+        for (int pass=0; pass<2*passes; ++pass) {
+            if (pass == passes) {
+                legacyTimer.reset();
+                connectedTimer.reset();
+            }
+            for (SyntheticEvent event : events) {
+                reconstruction.loadHits(context, event.hitn, event.sector, event.ring, event.half, event.nphe, event.time);
+                long start = System.nanoTime();
+                sink += reconstruction.findClusters(context).size();
+                legacyTimer.add(System.nanoTime() - start);
+                connected.loadHits(connectedContext, event.hitn, event.sector, event.ring, event.half, event.nphe, event.time);
+                start = System.nanoTime();
+                sink += connected.findClusters(connectedContext).size();
+                connectedTimer.add(System.nanoTime() - start);
+            }
+        }
+        System.out.printf("    %-22s %12.1f ns/event%n", legacyTimer.name, legacyTimer.nanosPerCall());
+        System.out.printf("    %-22s %12.1f ns/event%n", connectedTimer.name, connectedTimer.nanosPerCall());
+
+        long sameEvents = 0;
+        long legacyClusters = 0;
+        long matchedClusters = 0;
+        for (SyntheticEvent event : events) {
+            reconstruction.loadHits(context, event.hitn, event.sector, event.ring, event.half, event.nphe, event.time);
+            List<HTCCCluster> expected = reconstruction.findClusters(context);
+            connected.loadHits(connectedContext, event.hitn, event.sector, event.ring, event.half, event.nphe, event.time);
+            List<HTCCCluster> found = connected.findClusters(connectedContext);
+            int matched = 0;
+            long used = 0L;
+            for (HTCCCluster cluster : expected) {
+                for (int i=0; i<found.size(); ++i) {
+                    if ((used & (1L << i)) == 0L && sameCluster(cluster, found.get(i))) {
+                        used |= 1L << i;
+                        matched++;
+                        break;
+                    }
+                }
+            }
+            legacyClusters += expected.size();
+            matchedClusters += matched;
+            if (matched == expected.size() && matched == found.size())
+                sameEvents++;
+        }
+        System.out.printf("    mode agreement: %.4f of events, %.4f of legacy clusters%n",
+                          (double) sameEvents / events.length,
+                          legacyClusters == 0 ? 1.0 : (double) matchedClusters / legacyClusters);
+    }
+
+    /**
+     * Times <code>loadHits</code> followed by <code>intiRemainingHitList</code>
+     * with the scalar loops and with the vector kernel.  That both give the
+     * same hits is checked by <code>HTCCReconstructionCheck</code>.
+     * @param events the events to process
+     * @param passes the number of timed passes, after as many warmup passes
+     */
+    void compareKernels(SyntheticEvent[] events, int passes) {
+        HTCCReconstruction scalar = new HTCCReconstruction(reconstruction.getParameters(), HTCCTrace.OFF);
+        scalar.setVectorKernelEnabled(false);
+        HTCCReconstruction vector = new HTCCReconstruction(reconstruction.getParameters(), HTCCTrace.OFF);
+        if (!vector.setVectorKernelEnabled(true)) {
+            System.out.printf("    vector kernel not available%n");
+            return;
+        }
+        HTCCEventContext scalarContext = scalar.newContext();
+        HTCCEventContext vectorContext = vector.newContext();
+        StageTimer scalarTimer = new StageTimer("decode+filter scalar");
+        StageTimer vectorTimer = new StageTimer("decode+filter vector");
+        for (int pass=0; pass<2*passes; ++pass) {
+            if (pass == passes) {
+                scalarTimer.reset();
+                vectorTimer.reset();
+            }
+            for (SyntheticEvent event : events) {
+                long start = System.nanoTime();
+                scalar.loadHits(scalarContext, event.hitn, event.sector, event.ring, event.half, event.nphe, event.time);
+                sink += scalar.intiRemainingHitList(scalarContext).size();
+                scalarTimer.add(System.nanoTime() - start);
+                start = System.nanoTime();
+                vector.loadHits(vectorContext, event.hitn, event.sector, event.ring, event.half, event.nphe, event.time);
+                sink += vector.intiRemainingHitList(vectorContext).size();
+                vectorTimer.add(System.nanoTime() - start);
+            }
+        }
+        System.out.printf("    %-22s %12.1f ns/event%n", scalarTimer.name, scalarTimer.nanosPerCall());
+        System.out.printf("    %-22s %12.1f ns/event%n", vectorTimer.name, vectorTimer.nanosPerCall());
+    }
+
+    private static boolean sameCluster(HTCCCluster a, HTCCCluster b) {
+        return a.getNHitClust() == b.getNHitClust() &&
+               a.getIThetaMin() == b.getIThetaMin() && a.getIThetaMax() == b.getIThetaMax() &&
+               a.getIPhiMin() == b.getIPhiMin() && a.getIPhiMax() == b.getIPhiMax() &&
+               a.getNPheTot() == b.getNPheTot();
+    }
+
+    /**
+     * Main routine for benchmarking.
+     * @param args optional number of events, warmup passes and measured passes
+     */
+    public static void main(String[] args) {
+        int numEvents = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int warmup    = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int measured  = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        HTCCReconstructionBenchmark benchmark = new HTCCReconstructionBenchmark(new HTCCReconstruction());
+        for (Occupancy occupancy : Occupancy.values()) {
+            SyntheticEvent[] events = generate(occupancy, numEvents, 12345L + occupancy.ordinal());
+            for (int i=0; i<warmup; ++i)
+                benchmark.pass(events);
+            benchmark.reset();
+            for (int i=0; i<measured; ++i)
+                benchmark.pass(events);
+            benchmark.report(occupancy, events);
+            benchmark.compareBatch(events, measured);
+            benchmark.compareModes(events, measured);
+            benchmark.compareKernels(events, measured);
+        }
+        System.out.printf("(checksum %d)%n", benchmark.sink);
+    }
+}
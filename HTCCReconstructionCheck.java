@@ -0,0 +1,1097 @@
+package org.jlab.rec.htcc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import org.jlab.evio.clas12.EvioSource;
+
+/**
+ * Self checks of the HTCC reconstruction.
+ * <p>
+ * Each check compares an optimized path with the reference it replaced on
+ * random or hand-made input, and throws an <code>AssertionError</code> on the
+ * first difference.  No data files or EVIO dictionary are needed.
+ * <p>
+ * Usage: <code>HTCCReconstructionCheck</code>; exits with status 1 if a check
+ * fails.
+ */
+final class HTCCReconstructionCheck {
+
+    private HTCCReconstructionCheck() {
+    }
+
+    /**
+     * Builds clusters hit by hit through <code>addHit</code>, whose
+     * statistics are updated incrementally and whose angles come from
+     * <code>calcAngles</code>, and checks that <code>calcSums</code>, the
+     * full recomputation, gives exactly the same values.
+     */
+    static void checkClusterSums() {
+        Random random = new Random(3L);
+        HTCCChannelTable channels = new HTCCChannelTable(new ReconstructionParameters());
+        for (int event=0; event<100000; ++event) {
+            HTCCCluster cluster = new HTCCCluster();
+            int numHits = 1 + random.nextInt(8);
+            boolean byChannel = random.nextBoolean();
+            for (int hit=0; hit<numHits; ++hit) {
+                int channel = random.nextInt(HTCCChannelTable.NUM_CHANNELS);
+                int nphe = 1 + random.nextInt(20);
+                double time = 10.0*random.nextDouble();
+                if (byChannel) {
+                    cluster.addHit(channels, channel, nphe, time);
+                } else {
+                    cluster.addHit(HTCCChannelTable.itheta(channel), HTCCChannelTable.iphi(channel), nphe, time,
+                                   random.nextDouble(), 2*Math.PI*random.nextDouble(),
+                                   0.1*random.nextGaussian(), 0.1*random.nextGaussian());
+                }
+            }
+            double[] incremental = statistics(cluster);
+            cluster.calcSums();
+            double[] reference = statistics(cluster);
+            for (int i=0; i<reference.length; ++i) {
+                if (Double.compare(incremental[i], reference[i]) != 0)
+                    throw new AssertionError("cluster " + event + ": statistic " + i + " is " + incremental[i] +
+                                             " instead of " + reference[i]);
+            }
+        }
+    }
+
+    /**
+     * Checks that the calibration cache loads each run once while it stays
+     * cached, and evicts a run not used since the earliest miss.
+     */
+    static void checkCalibrationCache() throws IOException {
+        final int[] loads = new int[8];
+        HTCCCalibrationCache cache = new HTCCCalibrationCache(new HTCCCalibrationProvider() {
+            @Override
+            public ReconstructionParameters getParameters(int run) {
+                loads[run]++;
+                return new ReconstructionParameters();
+            }
+        }, 3);
+        ReconstructionParameters first = cache.getParameters(1);
+        cache.getParameters(2);
+        cache.getParameters(3);
+        for (int i=0; i<1000; ++i) {
+            if (cache.getParameters(1) != first)
+                throw new AssertionError("run 1 returned a different snapshot");
+        }
+        // Run 2 is the least recently used
+        cache.getParameters(4);
+        cache.getParameters(1);
+        cache.getParameters(3);
+        cache.getParameters(2);
+        if (loads[1] != 1 || loads[3] != 1 || loads[4] != 1 || loads[2] != 2)
+            throw new AssertionError("runs loaded " + loads[1] + ", " + loads[2] + ", " + loads[3] + ", " +
+                                     loads[4] + " times instead of 1, 2, 1, 1");
+        if (cache.size() != 3)
+            throw new AssertionError(cache.size() + " runs cached instead of 3");
+    }
+
+    /**
+     * Checks that the packed string of random parameters, read back, gives
+     * every field exactly, and so does the packed string of the result.
+     */
+    static void checkParametersRoundTrip() {
+        Random random = new Random(11L);
+        for (int i=0; i<1000; ++i) {
+            double[] theta0 = randomArray(random, ReconstructionParameters.NUM_RINGS);
+            double[] dtheta0 = randomArray(random, ReconstructionParameters.NUM_RINGS);
+            double[] phiRange = randomArray(random, ReconstructionParameters.NUM_RINGS);
+            double[] t0 = randomArray(random, ReconstructionParameters.NUM_RINGS);
+            double[] channelT0 = randomArray(random, HTCCChannelTable.NUM_CHANNELS);
+            double thetaRange = random.nextGaussian();
+            double phi0 = random.nextGaussian();
+            double dphi0 = random.nextGaussian();
+            double maxtimediff = random.nextGaussian();
+            int[] cuts = new int[6];
+            for (int c=0; c<cuts.length; ++c)
+                cuts[c] = random.nextInt();
+            ReconstructionParameters.ClusteringMode clustering =
+                ReconstructionParameters.ClusteringMode.values()[random.nextInt(2)];
+            boolean earlyTermination = random.nextBoolean();
+
+            StringBuilder packed = new StringBuilder();
+            packed.append("theta0=").append(join(theta0)).append(";dtheta0=").append(join(dtheta0))
+                  .append(";thetaRange=").append(thetaRange).append(";phiRange=").append(join(phiRange))
+                  .append(";phi0=").append(phi0).append(";dphi0=").append(dphi0)
+                  .append(";npeminclst=").append(cuts[0]).append(";npheminmax=").append(cuts[1])
+                  .append(";npheminhit=").append(cuts[2]).append(";nhitmaxclst=").append(cuts[3])
+                  .append(";nthetamaxclst=").append(cuts[4]).append(";nphimaxclst=").append(cuts[5])
+                  .append(";maxtimediff=").append(maxtimediff).append(";t0=").append(join(t0))
+                  .append(";channelT0=").append(join(channelT0)).append(";clustering=").append(clustering)
+                  .append(";earlyTermination=").append(earlyTermination);
+            ReconstructionParameters parsed = new ReconstructionParameters(packed.toString());
+            ReconstructionParameters[] both = { parsed, new ReconstructionParameters(parsed.pack()) };
+            for (ReconstructionParameters p : both) {
+                boolean same = Arrays.equals(p.theta0, theta0) && Arrays.equals(p.dtheta0, dtheta0) &&
+                    Arrays.equals(p.phiRange, phiRange) && Arrays.equals(p.t0, t0) &&
+                    Arrays.equals(p.channelT0, channelT0) &&
+                    Double.compare(p.thetaRange, thetaRange) == 0 && Double.compare(p.phi0, phi0) == 0 &&
+                    Double.compare(p.dphi0, dphi0) == 0 && Double.compare(p.maxtimediff, maxtimediff) == 0 &&
+                    p.npeminclst == cuts[0] && p.npheminmax == cuts[1] && p.npheminhit == cuts[2] &&
+                    p.nhitmaxclst == cuts[3] && p.nthetamaxclst == cuts[4] && p.nphimaxclst == cuts[5] &&
+                    p.clustering == clustering && p.earlyTermination == earlyTermination;
+                if (!same)
+                    throw new AssertionError("parameters " + packed + " read back as " + p.pack());
+            }
+        }
+    }
+
+    /**
+     * Checks that malformed packed strings are rejected with a message naming
+     * the problem.
+     */
+    static void checkParametersRejected() {
+        expectRejected("formatVersion=2;npeminclst=2",
+                       "unsupported parameters format version 2, expected " +
+                       ReconstructionParameters.FORMAT_VERSION);
+        expectRejected("formatVersion=one", "bad value for formatVersion: one");
+        expectRejected("npeminclst", "missing '=' at offset 0");
+        expectRejected("npeminclst=2;=3", "missing key at offset 13");
+        expectRejected("npeminclst=", "missing value for npeminclst");
+        expectRejected("npeminclst=2.5", "bad value for npeminclst: 2.5");
+        expectRejected("maxtimediff=abc", "bad value for maxtimediff: abc");
+        expectRejected("maxtimediff=NaN", "bad value for maxtimediff: NaN");
+        expectRejected("t0=1,2,Infinity,4", "bad value for t0: Infinity");
+        expectRejected("t0=1,,3,4", "missing element 1 of t0");
+        expectRejected("t0=1,2,3", "t0 must have 4 values");
+        expectRejected("t0=1,2,3,4,5", "t0 must have 4 values");
+        expectRejected("clustering=NEAREST", "bad value for clustering: NEAREST");
+        expectRejected("earlyTermination=yes", "bad value for earlyTermination: yes");
+        expectRejected("npheminmin=2", "unknown parameter npheminmin");
+        // The format version written by pack is accepted
+        new ReconstructionParameters("formatVersion=" + ReconstructionParameters.FORMAT_VERSION);
+    }
+
+    private static void expectRejected(String packed, String message) {
+        try {
+            new ReconstructionParameters(packed);
+        } catch (IllegalArgumentException e) {
+            if (!message.equals(e.getMessage()))
+                throw new AssertionError(packed + ": error \"" + e.getMessage() + "\" instead of \"" +
+                                         message + "\"");
+            return;
+        }
+        throw new AssertionError(packed + ": accepted instead of \"" + message + "\"");
+    }
+
+    private static double[] randomArray(Random random, int length) {
+        double[] values = new double[length];
+        for (int i=0; i<length; ++i)
+            values[i] = random.nextGaussian()*Math.pow(10.0, random.nextInt(11) - 5);
+        return values;
+    }
+
+    private static String join(double[] values) {
+        StringBuilder text = new StringBuilder();
+        for (int i=0; i<values.length; ++i) {
+            if (i > 0)
+                text.append(',');
+            text.append(values[i]);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Checks that <code>HTCCSeedQueue</code> gives the seeds of random events
+     * in the order of <code>Collections.sort</code> with the comparator of
+     * <code>findMaximumHit</code>: descending photoelectrons, then ascending
+     * hit index.  Events take values from a narrow range, with many ties,
+     * or from the whole int range, which forces the comparison sort.  One
+     * queue serves every event, as in an event context.
+     */
+    static void checkSeedQueue() {
+        Random random = new Random(10L);
+        HTCCSeedQueue queue = new HTCCSeedQueue();
+        for (int event=0; event<20000; ++event) {
+            int numHits = random.nextInt(event % 10 == 0 ? 300 : 60);
+            int[] nphe = new int[numHits + random.nextInt(4)];
+            boolean wide = random.nextInt(4) == 0;
+            for (int hit=0; hit<nphe.length; ++hit) {
+                if (!wide)
+                    nphe[hit] = random.nextInt(12) - 2;
+                else if (random.nextBoolean())
+                    nphe[hit] = random.nextInt();
+                else
+                    nphe[hit] = random.nextBoolean() ? Integer.MAX_VALUE : Integer.MIN_VALUE + random.nextInt(3);
+            }
+            int minNphe = wide && random.nextBoolean() ? Integer.MIN_VALUE : random.nextInt(6) - 1;
+
+            List<Integer> expected = seedOrder(nphe, numHits, minNphe);
+
+            queue.build(nphe, numHits, minNphe);
+            List<Integer> found = new ArrayList<Integer>();
+            int hit;
+            while ((hit = queue.poll()) >= 0)
+                found.add(hit);
+            if (!found.equals(expected))
+                throw new AssertionError("event " + event + ": seeds " + found + " instead of " + expected +
+                                         " for nphe " + Arrays.toString(nphe) + " and minimum " + minNphe);
+        }
+    }
+
+    /**
+     * Checks the CONNECTED clustering mode.  On hand-made events: hits
+     * linked pairwise in time form one cluster even where LEGACY, which
+     * compares with the running mean time, splits them; a hit at the hit
+     * threshold links nothing; a component of nhitmaxclst hits is accepted
+     * and one more is rejected without stopping the clustering, with or
+     * without early termination, where LEGACY stops.  On random events the
+     * clusters must match a breadth-first search for the components, built
+     * and cut hit by hit, in seed order.
+     */
+    static void checkConnectedClusters() {
+        String relaxed = "nthetamaxclst=4;nphimaxclst=12;";
+        // Corrected times 0, 1.5 and 3 along theta: each within maxtimediff
+        // of the next, the last 2.25 from the mean of the first two
+        int[][] chain = { { 0, 0, 5, 0 }, { 1, 0, 4, 15 }, { 2, 0, 3, 30 } };
+        expectClusters(relaxed + "clustering=CONNECTED", chain, "[0 12 24] rejected 0");
+        expectClusters(relaxed + "clustering=LEGACY", chain, "[0 12] [24] rejected 0");
+        // The middle hit is at the hit threshold, npheminhit=1
+        int[][] gap = { { 0, 0, 5, 0 }, { 0, 1, 1, 0 }, { 0, 2, 4, 0 } };
+        expectClusters("clustering=CONNECTED", gap, "[0] [2] rejected 0");
+        expectClusters(relaxed + "clustering=CONNECTED;npheminhit=0", gap, "[0 1 2] rejected 0");
+        // Four hits along phi, then a fifth, and a separate smaller cluster
+        int[][] four = { { 0, 0, 9, 0 }, { 0, 1, 2, 0 }, { 0, 2, 2, 0 }, { 0, 3, 2, 0 }, { 3, 8, 3, 0 } };
+        int[][] five = { { 0, 0, 9, 0 }, { 0, 1, 2, 0 }, { 0, 2, 2, 0 }, { 0, 3, 2, 0 }, { 0, 4, 2, 0 },
+                         { 3, 8, 3, 0 } };
+        for (String early : new String[] { "earlyTermination=false", "earlyTermination=true" }) {
+            String connected = relaxed + early + ";clustering=CONNECTED";
+            expectClusters(connected, four, "[0 1 2 3] [44] rejected 0");
+            expectClusters(connected, five, "[44] rejected 1");
+            expectClusters(relaxed + early + ";clustering=LEGACY", five, " rejected 1");
+        }
+
+        String[] parameterSets = {
+            "", "earlyTermination=true", "nhitmaxclst=3;nthetamaxclst=3;nphimaxclst=3",
+            "earlyTermination=true;nhitmaxclst=2", "maxtimediff=0.7;npheminhit=2", "npeminclst=8"
+        };
+        int compared = 0;
+        for (String packed : parameterSets) {
+            HTCCReconstruction reconstruction = new HTCCReconstruction(
+                new ReconstructionParameters(packed + ";clustering=CONNECTED"), HTCCTrace.OFF);
+            HTCCEventContext context = reconstruction.newContext();
+            for (HTCCReconstructionBenchmark.Occupancy occupancy : HTCCReconstructionBenchmark.Occupancy.values()) {
+                HTCCReconstructionBenchmark.SyntheticEvent[] events =
+                    HTCCReconstructionBenchmark.generate(occupancy, 5000, 21L);
+                for (int e=0; e<events.length; ++e) {
+                    HTCCReconstructionBenchmark.SyntheticEvent event = events[e];
+                    reconstruction.loadHits(context, event.hitn, event.sector, event.ring, event.half,
+                                            event.nphe, event.time);
+                    if (reconstruction.occupancyMask(context) == -1L)
+                        continue;
+                    String expected = connectedReference(context);
+                    String found = clusterFields(reconstruction.findClusters(context)) +
+                                   " rejected " + context.rejectedClusters;
+                    if (!found.equals(expected))
+                        throw new AssertionError("\"" + packed + "\" " + occupancy + " event " + e +
+                                                 ": connected clusters " + found + " instead of " + expected);
+                    compared++;
+                }
+            }
+        }
+        if (compared == 0)
+            throw new AssertionError("no event with an occupancy mask");
+    }
+
+    /**
+     * Clusters hits given as {itheta, iphi, nphe, corrected time} and checks
+     * the channels of each cluster and the number of rejected clusters.
+     */
+    private static void expectClusters(String packed, int[][] hits, String expected) {
+        ReconstructionParameters parameters = new ReconstructionParameters(packed);
+        HTCCReconstruction reconstruction = new HTCCReconstruction(parameters, HTCCTrace.OFF);
+        HTCCEventContext context = reconstruction.newContext();
+        HTCCHitColumns columns = new HTCCHitColumns();
+        for (int[] hit : hits) {
+            int channel = HTCCChannelTable.channel(hit[0], hit[1]);
+            // Inverse of the iphi decoding of loadHits
+            int raw = (hit[1] + 1) % HTCCChannelTable.NUM_IPHI;
+            int half = (raw + 3) % 2 == 1 ? 1 : 2;
+            int sector = (raw + 3 - half)/2;
+            columns.add(columns.getNumHits() + 1, sector, hit[0] + 1, half, hit[2],
+                        parameters.channels.t0(channel) + 0.1*hit[3]);
+        }
+        reconstruction.loadHits(context, columns);
+        StringBuilder text = new StringBuilder();
+        for (HTCCCluster cluster : reconstruction.findClusters(context)) {
+            text.append('[');
+            for (int hit=0; hit<cluster.getNHitClust(); ++hit)
+                text.append(hit > 0 ? " " : "").append(cluster.getHitChannel(hit));
+            text.append("] ");
+        }
+        String found = text.toString().trim() + " rejected " + context.rejectedClusters;
+        if (!found.equals(expected))
+            throw new AssertionError("\"" + packed + "\": clusters " + found + " instead of " + expected);
+    }
+
+    /**
+     * Clusters the hits loaded into the given context as connected
+     * components found by a breadth-first search, with the statistics and
+     * fields of <code>clusterFields</code> and the number of rejected
+     * clusters.
+     */
+    private static String connectedReference(HTCCEventContext context) {
+        ReconstructionParameters parameters = context.parameters;
+        HTCCChannelTable channels = parameters.channels;
+        int numHits = context.numHits;
+        int[] component = new int[numHits];
+        Arrays.fill(component, -1);
+        double[] time = new double[numHits];
+        for (int hit=0; hit<numHits; ++hit)
+            time[hit] = context.timeArray[hit] - channels.t0(context.channelArray[hit]);
+        int numComponents = 0;
+        for (int hit=0; hit<numHits; ++hit) {
+            if (component[hit] >= 0 || context.npheArray[hit] <= parameters.npheminhit)
+                continue;
+            List<Integer> pending = new ArrayList<Integer>();
+            pending.add(hit);
+            component[hit] = numComponents;
+            while (!pending.isEmpty()) {
+                int current = pending.remove(pending.size() - 1);
+                long neighbors = HTCCChannelTable.neighbors(context.channelArray[current]);
+                for (int other=0; other<numHits; ++other) {
+                    if (component[other] < 0 && context.npheArray[other] > parameters.npheminhit &&
+                        (neighbors & (1L << context.channelArray[other])) != 0L &&
+                        Math.abs(time[other] - time[current]) <= parameters.maxtimediff) {
+                        component[other] = numComponents;
+                        pending.add(other);
+                    }
+                }
+            }
+            numComponents++;
+        }
+
+        int minSeedNphe = parameters.npheminhit >= parameters.npheminmax ?
+                          parameters.npheminhit + 1 : parameters.npheminmax;
+        boolean[] used = new boolean[numComponents];
+        List<HTCCCluster> accepted = new ArrayList<HTCCCluster>();
+        int rejected = 0;
+        for (int seed : seedOrder(context.npheArray, numHits, minSeedNphe)) {
+            if (context.npheArray[seed] <= 0)
+                break;
+            if (used[component[seed]])
+                continue;
+            used[component[seed]] = true;
+            HTCCCluster cluster = new HTCCCluster();
+            for (int channel=0; channel<HTCCChannelTable.NUM_CHANNELS; ++channel) {
+                for (int hit=0; hit<numHits; ++hit) {
+                    if (component[hit] == component[seed] && context.channelArray[hit] == channel)
+                        cluster.addHit(channels, channel, context.npheArray[hit], time[hit]);
+                }
+            }
+            if (cluster.getNPheTot() >= parameters.npeminclst &&
+                cluster.getNThetaClust() <= parameters.nthetamaxclst &&
+                cluster.getNPhiClust() <= parameters.nphimaxclst &&
+                cluster.getNHitClust() <= parameters.nhitmaxclst)
+                accepted.add(cluster);
+            else
+                rejected++;
+        }
+        return clusterFields(accepted) + " rejected " + rejected;
+    }
+
+    /**
+     * Checks that <code>findClustersMasked</code> gives the clusters of the
+     * list-based <code>findCluster</code> loop on random events at every
+     * occupancy and under several parameter sets: the same clusters in the
+     * same order, with every statistic bit for bit, the same hits in the same
+     * order, and the same number of rejected clusters.  Events in which two
+     * hits share a channel have no occupancy mask and are left out.
+     */
+    static void checkMaskedClusters() {
+        String[] parameterSets = {
+            "", "earlyTermination=true", "npeminclst=6", "nhitmaxclst=2;nthetamaxclst=1",
+            "maxtimediff=0.5", "npheminmax=4;npheminhit=2"
+        };
+        int compared = 0;
+        for (String packed : parameterSets) {
+            HTCCReconstruction reconstruction =
+                new HTCCReconstruction(new ReconstructionParameters(packed), HTCCTrace.OFF);
+            HTCCEventContext maskedContext = reconstruction.newContext();
+            HTCCEventContext listContext = reconstruction.newContext();
+            for (HTCCReconstructionBenchmark.Occupancy occupancy : HTCCReconstructionBenchmark.Occupancy.values()) {
+                HTCCReconstructionBenchmark.SyntheticEvent[] events =
+                    HTCCReconstructionBenchmark.generate(occupancy, 5000, 6L);
+                for (int e=0; e<events.length; ++e) {
+                    HTCCReconstructionBenchmark.SyntheticEvent event = events[e];
+                    reconstruction.loadHits(maskedContext, event.hitn, event.sector, event.ring, event.half,
+                                            event.nphe, event.time);
+                    long mask = reconstruction.occupancyMask(maskedContext);
+                    if (mask == -1L)
+                        continue;
+                    maskedContext.resetClusters();
+                    String masked = clusterFields(reconstruction.findClustersMasked(maskedContext, mask)) +
+                                    " rejected " + maskedContext.rejectedClusters;
+
+                    reconstruction.loadHits(listContext, event.hitn, event.sector, event.ring, event.half,
+                                            event.nphe, event.time);
+                    listContext.resetClusters();
+                    HTCCHitList remainingHits = reconstruction.intiRemainingHitList(listContext);
+                    List<HTCCCluster> clusters = new ArrayList<HTCCCluster>();
+                    HTCCCluster cluster;
+                    while (remainingHits.size() > 0 &&
+                           (cluster = reconstruction.findCluster(listContext, remainingHits)) != null)
+                        clusters.add(cluster);
+                    String list = clusterFields(clusters) + " rejected " + listContext.rejectedClusters;
+
+                    if (!masked.equals(list))
+                        throw new AssertionError("\"" + packed + "\" " + occupancy + " event " + e +
+                                                 ": masked clusters " + masked + " instead of " + list);
+                    compared++;
+                }
+            }
+        }
+        if (compared == 0)
+            throw new AssertionError("no event with an occupancy mask");
+    }
+
+    /**
+     * Returns the hits with at least <code>minNphe</code> photoelectrons
+     * sorted by <code>Collections.sort</code> in the order
+     * <code>findMaximumHit</code> picks seeds.
+     */
+    private static List<Integer> seedOrder(final int[] nphe, int numHits, int minNphe) {
+        List<Integer> order = new ArrayList<Integer>();
+        for (int hit=0; hit<numHits; ++hit) {
+            if (nphe[hit] >= minNphe)
+                order.add(hit);
+        }
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                if (nphe[a] != nphe[b])
+                    return nphe[a] > nphe[b] ? -1 : 1;
+                return a.compareTo(b);
+            }
+        });
+        return order;
+    }
+
+    /**
+     * Returns every statistic and hit of the given clusters as text, doubles
+     * by their bits.
+     */
+    private static String clusterFields(List<HTCCCluster> clusters) {
+        StringBuilder text = new StringBuilder();
+        for (HTCCCluster cluster : clusters) {
+            text.append('[');
+            for (double value : statistics(cluster))
+                text.append(Long.toHexString(Double.doubleToLongBits(value))).append(' ');
+            for (int hit=0; hit<cluster.getNHitClust(); ++hit) {
+                text.append(cluster.getHitITheta(hit)).append('/').append(cluster.getHitIPhi(hit))
+                    .append('/').append(cluster.getHitChannel(hit)).append(' ');
+            }
+            text.append(']');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Checks that the vector kernel decodes and filters random events exactly
+     * like the scalar loops: the same theta index, phi index and channel for
+     * every hit and the same hits above threshold, in order.  Events have
+     * from 0 to 70 hits, so every vector length is met with every tail, and
+     * some hits lie outside the detector.  Batches put the hits of an event
+     * at an offset into the raw columns.
+     * @return false if the vector kernel is not available, true otherwise
+     */
+    static boolean checkVectorKernel() {
+        HTCCReconstruction scalar = new HTCCReconstruction(new ReconstructionParameters(), HTCCTrace.OFF);
+        scalar.setVectorKernelEnabled(false);
+        HTCCReconstruction vector = new HTCCReconstruction(new ReconstructionParameters(), HTCCTrace.OFF);
+        if (!vector.setVectorKernelEnabled(true))
+            return false;
+        Random random = new Random(23L);
+        for (int event=0; event<20000; ++event) {
+            ReconstructionParameters parameters =
+                new ReconstructionParameters("npheminhit=" + (random.nextInt(4) - 1));
+            scalar.setParameters(parameters);
+            vector.setParameters(parameters);
+            HTCCEventContext scalarContext = scalar.newContext();
+            HTCCEventContext vectorContext = vector.newContext();
+            int first = random.nextInt(3)*random.nextInt(20);
+            int numHits = random.nextInt(71);
+            int[] sector = new int[first + numHits];
+            int[] ring = new int[first + numHits];
+            int[] half = new int[first + numHits];
+            int[] nphe = new int[first + numHits];
+            double[] time = new double[first + numHits];
+            for (int hit=0; hit<first+numHits; ++hit) {
+                boolean outside = random.nextInt(20) == 0;
+                sector[hit] = outside ? random.nextInt(9) - 1 : 1 + random.nextInt(6);
+                ring[hit] = outside ? random.nextInt(7) - 1 : 1 + random.nextInt(4);
+                half[hit] = outside ? random.nextInt(5) - 1 : 1 + random.nextInt(2);
+                nphe[hit] = random.nextInt(8) - 2;
+                time[hit] = 20.0*random.nextDouble();
+            }
+            scalar.loadHits(scalarContext, first, numHits, sector, ring, half, nphe, time);
+            vector.loadHits(vectorContext, first, numHits, sector, ring, half, nphe, time);
+            for (int hit=0; hit<numHits; ++hit) {
+                if (scalarContext.ithetaArray[hit] != vectorContext.ithetaArray[hit] ||
+                    scalarContext.iphiArray[hit] != vectorContext.iphiArray[hit] ||
+                    scalarContext.channelArray[hit] != vectorContext.channelArray[hit])
+                    throw new AssertionError("event " + event + " hit " + hit + ": vector kernel decoded " +
+                                             vectorContext.ithetaArray[hit] + "/" + vectorContext.iphiArray[hit] +
+                                             "/" + vectorContext.channelArray[hit] + " instead of " +
+                                             scalarContext.ithetaArray[hit] + "/" + scalarContext.iphiArray[hit] +
+                                             "/" + scalarContext.channelArray[hit]);
+            }
+            String expected = hitList(scalar.intiRemainingHitList(scalarContext));
+            String found = hitList(vector.intiRemainingHitList(vectorContext));
+            if (!found.equals(expected))
+                throw new AssertionError("event " + event + ": vector kernel kept hits " + found + " instead of " +
+                                         expected);
+        }
+        return true;
+    }
+
+    private static String hitList(HTCCHitList hits) {
+        StringBuilder text = new StringBuilder();
+        for (int i=0; i<hits.size(); ++i)
+            text.append(hits.get(i)).append(' ');
+        return text.toString();
+    }
+
+    /**
+     * Checks that a hit outside the detector, here sector 0, does not stop the
+     * clustering of an event when it is too small to seed a cluster and too
+     * late to join one: the event gives the same clusters as without it.
+     */
+    static void checkOffDetectorHit() {
+        HTCCReconstruction reconstruction = new HTCCReconstruction(
+            new ReconstructionParameters("npheminmax=6"), HTCCTrace.OFF);
+        HTCCEventContext context = reconstruction.newContext();
+        reconstruction.loadHits(context, new int[] { 1, 2 }, new int[] { 1, 2 }, new int[] { 1, 1 },
+                                new int[] { 1, 1 }, new int[] { 10, 6 }, new double[] { 20.0, 20.5 });
+        String expected = clusters(reconstruction.findClusters(context));
+        reconstruction.loadHits(context, new int[] { 1, 2, 3 }, new int[] { 1, 2, 0 }, new int[] { 1, 1, 1 },
+                                new int[] { 1, 1, 1 }, new int[] { 10, 6, 5 }, new double[] { 20.0, 20.5, 90.0 });
+        String found = clusters(reconstruction.findClusters(context));
+        if (!found.equals(expected))
+            throw new AssertionError("clusters " + found + " instead of " + expected);
+    }
+
+    /**
+     * Checks that the pattern cache gives the same clusters as clustering
+     * every event, when a repeated pattern has other numbers of
+     * photoelectrons: first two events with the same channels whose first
+     * cluster fails <code>npeminclst</code> only the first time, then random
+     * events.
+     */
+    static void checkPatternCache() {
+        ReconstructionParameters parameters = new ReconstructionParameters("npeminclst=6");
+        HTCCReconstruction uncached = new HTCCReconstruction(parameters, HTCCTrace.OFF);
+        HTCCReconstruction cached = new HTCCReconstruction(parameters, HTCCTrace.OFF);
+        cached.setPatternCacheEnabled(true);
+        HTCCEventContext uncachedContext = uncached.newContext();
+        HTCCEventContext cachedContext = cached.newContext();
+
+        // Channels 0 and 6, which are not neighbors
+        HTCCReconstructionBenchmark.SyntheticEvent event = new HTCCReconstructionBenchmark.SyntheticEvent(2);
+        event.hitn[0] = 1; event.sector[0] = 1; event.ring[0] = 1; event.half[0] = 1; event.time[0] = 20.0;
+        event.hitn[1] = 2; event.sector[1] = 4; event.ring[1] = 1; event.half[1] = 2; event.time[1] = 20.0;
+        event.nphe[0] = 3;
+        event.nphe[1] = 2;
+        comparePatternCache(uncached, uncachedContext, cached, cachedContext, event, "first pattern");
+        event.nphe[0] = 7;
+        event.nphe[1] = 6;
+        comparePatternCache(uncached, uncachedContext, cached, cachedContext, event, "repeated pattern");
+        if (cachedContext.getPatternCache().getHits() != 1)
+            throw new AssertionError("the repeated pattern was not taken from the cache");
+
+        for (HTCCReconstructionBenchmark.SyntheticEvent random :
+                 HTCCReconstructionBenchmark.generate(HTCCReconstructionBenchmark.Occupancy.LOW, 100000, 11L)) {
+            comparePatternCache(uncached, uncachedContext, cached, cachedContext, random, "random event");
+        }
+    }
+
+    /**
+     * Checks that released recorders are no longer kept by the metrics and
+     * that their counts stay in the totals.
+     */
+    static void checkMetricsRelease() {
+        HTCCMetrics metrics = new HTCCMetrics();
+        HTCCMetrics.Recorder kept = metrics.newRecorder();
+        kept.event(3, 1);
+        for (int i=0; i<1000; ++i) {
+            HTCCMetrics.Recorder recorder = metrics.newRecorder();
+            recorder.event(2, 1);
+            recorder.rejected(true, false, false, false);
+            recorder.release();
+            recorder.release();
+        }
+        if (metrics.getNumRecorders() != 1)
+            throw new AssertionError(metrics.getNumRecorders() + " recorders kept instead of 1");
+        HTCCMetrics.Snapshot snapshot = metrics.snapshot();
+        if (snapshot.getEvents() != 1001 || snapshot.getHits() != 2003 || snapshot.getClusters() != 1001 ||
+            snapshot.getRejectedClusters(HTCCMetrics.Cut.NPE) != 1000 || snapshot.getMultiplicity(1) != 1001)
+            throw new AssertionError("totals of " + snapshot.getEvents() + " events, " + snapshot.getHits() +
+                                     " hits, " + snapshot.getClusters() + " clusters after release");
+    }
+
+    /**
+     * Checks that a source failing on its first event makes the driver
+     * throw without leaving its writer thread behind.
+     */
+    static void checkDriverSourceFailure() throws InterruptedException {
+        HTCCParallelDriver driver = new HTCCParallelDriver(
+            new HTCCReconstruction(new ReconstructionParameters(), HTCCTrace.OFF), 2, 4);
+        EvioSource failing = new EvioSource() {
+            @Override
+            public boolean hasEvent() {
+                return true;
+            }
+
+            @Override
+            public Object getNextEvent() {
+                throw new IllegalStateException("unreadable event");
+            }
+        };
+        try {
+            driver.run(failing, null);
+            throw new AssertionError("the source failure was not thrown");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (writerThreadAlive()) {
+            if (System.currentTimeMillis() > deadline)
+                throw new AssertionError("the htcc-writer thread is still alive");
+            Thread.sleep(10);
+        }
+    }
+
+    private static boolean writerThreadAlive() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("htcc-writer") && thread.isAlive())
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Checks that changing the trace level replaces the trace of the
+     * reconstruction and leaves the old one alone, also when the shared
+     * <code>HTCCTrace.OFF</code> was installed: only events clustered while
+     * the level is CLUSTERS are traced, and a closed trace cannot be enabled
+     * again.
+     */
+    static void checkTraceLevel() {
+        HTCCReconstruction reconstruction = new HTCCReconstruction(new ReconstructionParameters(), HTCCTrace.OFF);
+        reconstruction.setTraceLevel(HTCCTrace.Level.CLUSTERS);
+        if (reconstruction.getTrace().getLevel() != HTCCTrace.Level.CLUSTERS)
+            throw new AssertionError("trace level " + reconstruction.getTrace().getLevel() + " instead of CLUSTERS");
+        if (HTCCTrace.OFF.getLevel() != HTCCTrace.Level.OFF || HTCCTrace.OFF.clusters)
+            throw new AssertionError("HTCCTrace.OFF was enabled");
+        reconstruction.setTraceLevel(HTCCTrace.Level.OFF);
+        reconstruction.getTrace().close();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HTCCTrace initial = new HTCCTrace(HTCCTrace.Level.OFF, out);
+        reconstruction = new HTCCReconstruction(new ReconstructionParameters(), initial);
+        HTCCEventContext context = reconstruction.newContext();
+        HTCCHitColumns hits = new HTCCHitColumns();
+        hits.add(1, 1, 1, 1, 10, 20.0);
+        reconstruction.process(hits, context);
+        reconstruction.setTraceLevel(HTCCTrace.Level.CLUSTERS);
+        reconstruction.process(hits, context);
+        reconstruction.setTraceLevel(HTCCTrace.Level.OFF);
+        reconstruction.process(hits, context);
+        reconstruction.getTrace().close();
+        if (initial.getLevel() != HTCCTrace.Level.OFF)
+            throw new AssertionError("the initial trace changed level to " + initial.getLevel());
+        String text = out.toString();
+        int records = text.split("\\[HTCC-trace\\] cluster ", -1).length - 1;
+        if (records != 1)
+            throw new AssertionError(records + " cluster records instead of 1: " + text);
+        try {
+            reconstruction.setTraceLevel(HTCCTrace.Level.CLUSTERS);
+            throw new AssertionError("a closed trace was enabled");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Checks that a wrapped hit block clusters the caller's columns, refuses
+     * new hits, and after <code>clear</code> builds its events without
+     * writing the caller's arrays.
+     */
+    static void checkHitBlockWrap() {
+        HTCCReconstruction reconstruction = new HTCCReconstruction(new ReconstructionParameters(), HTCCTrace.OFF);
+        HTCCEventContext context = reconstruction.newContext();
+        int[] offsets = { 0, 1, 3 };
+        int[] hitn = { 1, 2, 3 };
+        int[] sector = { 1, 2, 2 };
+        int[] ring = { 1, 2, 2 };
+        int[] half = { 1, 1, 2 };
+        int[] nphe = { 10, 5, 6 };
+        double[] time = { 20.0, 21.0, 21.5 };
+        String before = Arrays.toString(hitn) + Arrays.toString(sector) + Arrays.toString(ring) +
+                        Arrays.toString(half) + Arrays.toString(nphe) + Arrays.toString(time);
+        HTCCHitBlock block = new HTCCHitBlock();
+        block.wrap(2, offsets, hitn, sector, ring, half, nphe, time);
+        HTCCClusterBlock clusters = new HTCCClusterBlock();
+        reconstruction.processBatch(block, clusters, context);
+        if (clusters.getNumClusters(0) != 1 || clusters.getNumClusters(1) != 1)
+            throw new AssertionError("wrapped block gave " + clusters.getNumClusters(0) + " and " +
+                                     clusters.getNumClusters(1) + " clusters instead of 1 and 1");
+        try {
+            block.add(4, 3, 3, 1, 7, 22.0);
+            throw new AssertionError("a hit was added to a wrapped block");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        block.clear();
+        for (int hit=0; hit<100; ++hit) {
+            block.add(100 + hit, 6, 4, 2, 99, 99.0);
+            block.endEvent();
+        }
+        String after = Arrays.toString(hitn) + Arrays.toString(sector) + Arrays.toString(ring) +
+                       Arrays.toString(half) + Arrays.toString(nphe) + Arrays.toString(time);
+        if (!after.equals(before) || offsets[1] != 1 || offsets[2] != 3)
+            throw new AssertionError("the block wrote the wrapped arrays: " + after);
+    }
+
+    /**
+     * Checks that the cluster writer stores with every event the version of
+     * the parameters that clustered it, for events written one at a time and
+     * by batch, across a change of parameters.
+     */
+    static void checkWriterVersion() throws IOException {
+        HTCCReconstruction reconstruction = new HTCCReconstruction(new ReconstructionParameters(), HTCCTrace.OFF);
+        HTCCEventContext context = reconstruction.newContext();
+        HTCCHitColumns hits = new HTCCHitColumns();
+        hits.add(1, 1, 1, 1, 10, 20.0);
+        HTCCHitBlock block = new HTCCHitBlock();
+        block.add(1, 2, 1, 1, 10, 20.0);
+        block.endEvent();
+        block.endEvent();
+        HTCCClusterBlock clusters = new HTCCClusterBlock();
+
+        File file = File.createTempFile("htcc-check", ".evio");
+        try {
+            HTCCClusterWriter writer = new HTCCClusterWriter(file, 2, 2);
+            try {
+                reconstruction.process(hits, writer, context);
+                reconstruction.setParameters(new ReconstructionParameters("npeminclst=2"));
+                reconstruction.process(hits, writer, context);
+                reconstruction.processBatch(block, clusters, context);
+                writer.handle(clusters, new long[] { 2, 3 });
+                reconstruction.setParameters(new ReconstructionParameters());
+                reconstruction.process(hits, writer, context);
+            } finally {
+                writer.close();
+            }
+            long[] expected = { 1, 2, 2, 2, 3 };
+            long[] found = parametersVersions(file, HTCCClusterWriter.DEFAULT_TAG);
+            if (!Arrays.equals(found, expected))
+                throw new AssertionError("parameter versions " + Arrays.toString(found) + " instead of " +
+                                         Arrays.toString(expected));
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Checks that the first error of the cluster writer stops the output and
+     * comes back from the next <code>write</code> and from <code>close</code>,
+     * by writing to <code>/dev/full</code>, where every write fails.  Skipped
+     * where there is no such device.
+     */
+    static void checkWriterFailure() throws IOException {
+        File full = new File("/dev/full");
+        if (!full.exists())
+            return;
+        HTCCClusterColumns clusters = new HTCCClusterColumns();
+        HTCCClusterWriter writer = new HTCCClusterWriter(full, 4, 2);
+        writer.write(clusters);
+        IOException first = null;
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            first = e;
+        }
+        if (first == null)
+            throw new AssertionError("flushing to /dev/full did not fail");
+        // The buffer being filled is not full, so only the recorded failure
+        // can stop this write
+        try {
+            writer.write(clusters);
+            throw new AssertionError("write succeeded after a failure");
+        } catch (RuntimeException e) {
+            if (e.getCause() != first)
+                throw new AssertionError("write failed with " + e.getCause() + " instead of the first failure");
+        }
+        try {
+            writer.close();
+            throw new AssertionError("close succeeded after a failure");
+        } catch (IOException e) {
+            if (e != first)
+                throw new AssertionError("close failed with " + e + " instead of the first failure");
+        }
+        if (writer.getEventsWritten() != 0)
+            throw new AssertionError(writer.getEventsWritten() + " events written to /dev/full");
+    }
+
+    /**
+     * Writes the clusters of random events with <code>HTCCClusterWriter</code>
+     * and reads them back with <code>HTCCMappedEvioReader</code>, through a
+     * layout that takes nhits, ntheta, nphi, mintheta, nphe and time for the
+     * hit columns.  Every event with clusters must come back with its index
+     * and exactly the values written; then damaged copies of the file must
+     * fail with the matching error.
+     */
+    static void checkWriterReaderRoundTrip() throws IOException {
+        HTCCReconstruction reconstruction = new HTCCReconstruction(new ReconstructionParameters(), HTCCTrace.OFF);
+        HTCCEventContext context = reconstruction.newContext();
+        HTCCMappedEvioReader.Layout layout =
+            new HTCCMappedEvioReader.Layout(HTCCClusterWriter.DEFAULT_TAG, 1, 2, 3, 4, 8, 9);
+        List<String> expected = new ArrayList<String>();
+        File file = File.createTempFile("htcc-check", ".evio");
+        try {
+            HTCCClusterWriter writer = new HTCCClusterWriter(file, 64, 3);
+            try {
+                for (HTCCReconstructionBenchmark.SyntheticEvent event :
+                         HTCCReconstructionBenchmark.generate(HTCCReconstructionBenchmark.Occupancy.HIGH, 5000, 5L)) {
+                    HTCCClusterColumns clusters = reconstruction.process(event, context);
+                    writer.write(clusters);
+                    StringBuilder text = new StringBuilder();
+                    for (int i=0; i<clusters.size(); ++i) {
+                        text.append('[').append(clusters.getNHitClust(i)).append(' ')
+                            .append(clusters.getNThetaClust(i)).append(' ').append(clusters.getNPhiClust(i))
+                            .append(' ').append(clusters.getIThetaMin(i)).append(' ')
+                            .append(clusters.getNPheTot(i)).append(' ').append(clusters.getTime(i)).append(']');
+                    }
+                    expected.add(text.toString());
+                }
+            } finally {
+                writer.close();
+            }
+
+            int withClusters = 0;
+            HTCCMappedEvioReader reader = new HTCCMappedEvioReader(file, layout);
+            try {
+                HTCCHitColumns hits = new HTCCHitColumns();
+                long previous = -1;
+                while (reader.next(hits)) {
+                    long index = reader.getEventIndex();
+                    for (long skipped=previous+1; skipped<index; ++skipped) {
+                        if (expected.get((int) skipped).length() != 0)
+                            throw new AssertionError("event " + skipped + " with clusters was skipped");
+                    }
+                    StringBuilder text = new StringBuilder();
+                    for (int i=0; i<hits.getNumHits(); ++i) {
+                        text.append('[').append(hits.getHitn()[i]).append(' ').append(hits.getSector()[i])
+                            .append(' ').append(hits.getRing()[i]).append(' ').append(hits.getHalf()[i])
+                            .append(' ').append(hits.getNphe()[i]).append(' ').append(hits.getTime()[i])
+                            .append(']');
+                    }
+                    if (!text.toString().equals(expected.get((int) index)))
+                        throw new AssertionError("event " + index + " read as " + text + " instead of " +
+                                                 expected.get((int) index));
+                    withClusters++;
+                    previous = index;
+                }
+                for (long skipped=previous+1; skipped<expected.size(); ++skipped) {
+                    if (expected.get((int) skipped).length() != 0)
+                        throw new AssertionError("event " + skipped + " with clusters was skipped");
+                }
+                if (reader.getEventsRead() != expected.size())
+                    throw new AssertionError(reader.getEventsRead() + " events read instead of " + expected.size());
+            } finally {
+                reader.close();
+            }
+            if (withClusters == 0)
+                throw new AssertionError("no event with clusters");
+
+            byte[] bytes = readFile(file);
+            // Offsets in the first block: header, event bank at 32, clusters
+            // bank at 40, event index bank at 48
+            expectReadFailure(Arrays.copyOf(bytes, 20), layout, "truncated block header at byte 0");
+            expectReadFailure(setInt(bytes, 28, 0x12345678), layout, "no EVIO block at byte 0");
+            expectReadFailure(setInt(bytes, 20, 3), layout, "EVIO version 3 at byte 0, expected 4");
+            expectReadFailure(Arrays.copyOf(bytes, 4*ByteBuffer.wrap(bytes).getInt(0) - 4), layout,
+                              "bad block length at byte 0");
+            expectReadFailure(setInt(bytes, 32, 1 << 20), layout, "event 0 runs past its block");
+            expectReadFailure(setInt(bytes, 40, 1 << 20), layout, "bank runs past its parent in event 0");
+            expectReadFailure(setInt(bytes, 48, 1 << 20), layout, "HTCC column runs past its bank in event 0");
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Checks that reading the given file content fails with the given
+     * message.
+     */
+    private static void expectReadFailure(byte[] bytes, HTCCMappedEvioReader.Layout layout, String message)
+            throws IOException {
+        File file = File.createTempFile("htcc-check", ".evio");
+        try {
+            FileOutputStream output = new FileOutputStream(file);
+            try {
+                output.write(bytes);
+            } finally {
+                output.close();
+            }
+            HTCCMappedEvioReader reader = new HTCCMappedEvioReader(file, layout);
+            try {
+                HTCCHitColumns hits = new HTCCHitColumns();
+                while (reader.next(hits)) {
+                    // read to the end or to the first error
+                }
+            } catch (IOException e) {
+                if (!message.equals(e.getMessage()))
+                    throw new AssertionError("error \"" + e.getMessage() + "\" instead of \"" + message + "\"");
+                return;
+            } finally {
+                reader.close();
+            }
+            throw new AssertionError("no error instead of \"" + message + "\"");
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static byte[] setInt(byte[] bytes, int offset, int value) {
+        byte[] copy = bytes.clone();
+        ByteBuffer.wrap(copy).putInt(offset, value);
+        return copy;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) input.length()];
+            input.readFully(bytes);
+            return bytes;
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Returns the parameters version of every event written by
+     * <code>HTCCClusterWriter</code>: the bank of the given tag and num 14
+     * inside the clusters bank.
+     */
+    private static long[] parametersVersions(File file, int tag) throws IOException {
+        byte[] bytes = readFile(file);
+        ByteBuffer data = ByteBuffer.wrap(bytes);
+        long[] versions = new long[0];
+        int block = 0;
+        while (block < bytes.length) {
+            int numEvents = data.getInt(block + 12);
+            int event = block + 4*data.getInt(block + 8);
+            for (int e=0; e<numEvents; ++e) {
+                int container = event + 8;
+                int end = container + 4*(data.getInt(container) + 1);
+                long version = -1;
+                for (int bank=container+8; bank<end; bank+=4*(data.getInt(bank) + 1)) {
+                    int word = data.getInt(bank + 4);
+                    if (word >>> 16 == tag && (word & 0xff) == 14)
+                        version = data.getLong(bank + 8);
+                }
+                versions = Arrays.copyOf(versions, versions.length + 1);
+                versions[versions.length - 1] = version;
+                event += 4*(data.getInt(event) + 1);
+            }
+            block += 4*data.getInt(block);
+        }
+        return versions;
+    }
+
+    private static void comparePatternCache(HTCCReconstruction uncached, HTCCEventContext uncachedContext,
+                                            HTCCReconstruction cached, HTCCEventContext cachedContext,
+                                            HTCCReconstructionBenchmark.SyntheticEvent event, String name) {
+        String expected = clusters(findClusters(uncached, uncachedContext, event));
+        String found = clusters(findClusters(cached, cachedContext, event));
+        if (!found.equals(expected))
+            throw new AssertionError(name + ": cached clusters " + found + " instead of " + expected);
+    }
+
+    private static List<HTCCCluster> findClusters(HTCCReconstruction reconstruction, HTCCEventContext context,
+                                                  HTCCReconstructionBenchmark.SyntheticEvent event) {
+        reconstruction.loadHits(context, event.hitn, event.sector, event.ring, event.half, event.nphe, event.time);
+        return reconstruction.findClusters(context);
+    }
+
+    private static String clusters(List<HTCCCluster> clusters) {
+        StringBuilder text = new StringBuilder();
+        for (HTCCCluster cluster : clusters) {
+            text.append('[').append(cluster.getNHitClust()).append(' ').append(cluster.getNPheTot())
+                .append(' ').append(cluster.getTime()).append(' ').append(cluster.getTheta())
+                .append(' ').append(cluster.getPhi()).append(']');
+        }
+        return text.toString();
+    }
+
+    private static double[] statistics(HTCCCluster cluster) {
+        return new double[] {
+            cluster.getNHitClust(), cluster.getNThetaClust(), cluster.getNPhiClust(),
+            cluster.getIThetaMin(), cluster.getIThetaMax(), cluster.getIPhiMin(), cluster.getIPhiMax(),
+            cluster.getNPheTot(), cluster.getTime(), cluster.getTheta(), cluster.getPhi(),
+            cluster.getDTheta(), cluster.getDPhi()
+        };
+    }
+
+    /**
+     * Runs every check.
+     * @param args unused
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        try {
+            checkClusterSums();
+            System.out.println("[HTCC-check] cluster sums ok");
+            checkCalibrationCache();
+            System.out.println("[HTCC-check] calibration cache ok");
+            checkParametersRoundTrip();
+            System.out.println("[HTCC-check] parameters round trip ok");
+            checkParametersRejected();
+            System.out.println("[HTCC-check] malformed parameters ok");
+            checkSeedQueue();
+            System.out.println("[HTCC-check] seed queue ok");
+            checkMaskedClusters();
+            System.out.println("[HTCC-check] masked clusters ok");
+            checkConnectedClusters();
+            System.out.println("[HTCC-check] connected clusters ok");
+            if (checkVectorKernel())
+                System.out.println("[HTCC-check] vector kernel ok");
+            else
+                System.out.println("[HTCC-check] vector kernel not available, skipped");
+            checkOffDetectorHit();
+            System.out.println("[HTCC-check] off-detector hit ok");
+            checkPatternCache();
+            System.out.println("[HTCC-check] pattern cache ok");
+            checkMetricsRelease();
+            System.out.println("[HTCC-check] metrics release ok");
+            checkTraceLevel();
+            System.out.println("[HTCC-check] trace level ok");
+            checkDriverSourceFailure();
+            System.out.println("[HTCC-check] driver source failure ok");
+            checkHitBlockWrap();
+            System.out.println("[HTCC-check] hit block wrap ok");
+            checkWriterVersion();
+            System.out.println("[HTCC-check] writer parameters version ok");
+            checkWriterFailure();
+            System.out.println("[HTCC-check] writer failure ok");
+            checkWriterReaderRoundTrip();
+            System.out.println("[HTCC-check] writer to reader round trip ok");
+        } catch (AssertionError e) {
+            System.out.println("[HTCC-check] FAILED: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
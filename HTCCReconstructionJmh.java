@@ -0,0 +1,154 @@
+package org.jlab.rec.htcc;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * JMH benchmarks of the HTCC reconstruction: the clustering of a whole event
+ * and each of its stages, on the synthetic events of
+ * <code>HTCCReconstructionBenchmark</code> at low, nominal and high occupancy.
+ * <p>
+ * <code>processEvent</code> runs <code>process</code>, which is what
+ * <code>processEvent</code> does once the EVIO bank is wrapped; EVIO banks
+ * cannot be built without the CLAS12 dictionary.
+ * <code>processEventCached</code> does the same with the pattern cache on.  The stage benchmarks
+ * cycle through events loaded beforehand into contexts of their own, so that
+ * each measures one stage only.  <code>findCluster</code> also rebuilds the
+ * remaining hits list that it consumes, whose cost alone is measured by
+ * <code>intiRemainingHitList</code>.
+ * <p>
+ * Usage: <code>mvn -P jmh package</code>, then
+ * <code>java -jar target/benchmarks.jar HTCCReconstructionJmh</code>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 3, jvmArgsAppend = { "--add-modules", "jdk.incubator.vector" })
+public class HTCCReconstructionJmh {
+
+    // Events cycled through, a power of two
+    private static final int NUM_EVENTS = 1024;
+    // Events loaded into contexts of their own for the stage benchmarks
+    private static final int NUM_LOADED = 256;
+
+    @Param({ "LOW", "NOMINAL", "HIGH" })
+    public String occupancy;
+
+    private HTCCReconstruction reconstruction;
+    private HTCCEventContext context;
+    private HTCCReconstruction cachedReconstruction;
+    private HTCCEventContext cachedContext;
+    private HTCCReconstructionBenchmark.SyntheticEvent[] events;
+    private HTCCEventContext[] loaded;
+    private int nextEvent;
+    private int nextLoaded;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        reconstruction = new HTCCReconstruction(new ReconstructionParameters(), HTCCTrace.OFF);
+        context = reconstruction.newContext();
+        cachedReconstruction = new HTCCReconstruction(new ReconstructionParameters(), HTCCTrace.OFF);
+        cachedReconstruction.setPatternCacheEnabled(true);
+        cachedContext = cachedReconstruction.newContext();
+        events = HTCCReconstructionBenchmark.generate(
+            HTCCReconstructionBenchmark.Occupancy.valueOf(occupancy), NUM_EVENTS, 1L);
+        loaded = new HTCCEventContext[NUM_LOADED];
+        for (int i=0; i<NUM_LOADED; ++i) {
+            loaded[i] = reconstruction.newContext();
+            load(loaded[i], events[i]);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.release();
+        cachedContext.release();
+        for (HTCCEventContext loadedContext : loaded)
+            loadedContext.release();
+    }
+
+    /**
+     * Clusters one event end to end.
+     * @return the clusters
+     */
+    @Benchmark
+    public HTCCClusterColumns processEvent() {
+        return reconstruction.process(nextEvent(), context);
+    }
+
+    /**
+     * Clusters one event end to end, taking repeated hit patterns from the
+     * pattern cache.
+     * @return the clusters
+     */
+    @Benchmark
+    public HTCCClusterColumns processEventCached() {
+        return cachedReconstruction.process(nextEvent(), cachedContext);
+    }
+
+    /**
+     * Decodes the hit columns of one event into the context.
+     * @return the number of hits
+     */
+    @Benchmark
+    public int loadHits() {
+        load(context, nextEvent());
+        return context.numHits;
+    }
+
+    /**
+     * Filters the hits of a loaded event by the photoelectron threshold.
+     * @return the number of hits above threshold
+     */
+    @Benchmark
+    public int intiRemainingHitList() {
+        return reconstruction.intiRemainingHitList(nextLoaded()).size();
+    }
+
+    /**
+     * Finds every cluster of a loaded event through the list-based seed
+     * search and growth.
+     * @param blackhole consumes the clusters
+     */
+    @Benchmark
+    public void findCluster(Blackhole blackhole) {
+        HTCCEventContext loadedContext = nextLoaded();
+        loadedContext.resetClusters();
+        HTCCHitList remainingHits = reconstruction.intiRemainingHitList(loadedContext);
+        HTCCCluster cluster;
+        while (remainingHits.size() > 0 &&
+               (cluster = reconstruction.findCluster(loadedContext, remainingHits)) != null)
+            blackhole.consume(cluster);
+    }
+
+    private void load(HTCCEventContext target, HTCCReconstructionBenchmark.SyntheticEvent event) {
+        reconstruction.loadHits(target, event.hitn, event.sector, event.ring, event.half, event.nphe, event.time);
+    }
+
+    private HTCCReconstructionBenchmark.SyntheticEvent nextEvent() {
+        HTCCReconstructionBenchmark.SyntheticEvent event = events[nextEvent];
+        nextEvent = (nextEvent + 1) & (NUM_EVENTS - 1);
+        return event;
+    }
+
+    private HTCCEventContext nextLoaded() {
+        HTCCEventContext loadedContext = loaded[nextLoaded];
+        nextLoaded = (nextLoaded + 1) % NUM_LOADED;
+        return loadedContext;
+    }
+}
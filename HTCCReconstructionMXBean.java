@@ -0,0 +1,59 @@
+package org.jlab.rec.htcc;
+
+/**
+ * Management interface of a running HTCC reconstruction, see
+ * <code>HTCCReconstructionMonitor</code>.
+ * <p>
+ * Rates and latencies marked as recent cover the last one to two seconds;
+ * the others cover the whole lifetime of the reconstruction.
+ */
+public interface HTCCReconstructionMXBean {
+
+    long getEvents();
+
+    long getHits();
+
+    long getClusters();
+
+    double getEventsPerSecond();
+
+    double getRecentEventsPerSecond();
+
+    double getRecentHitsPerSecond();
+
+    double getClustersPerEvent();
+
+    /** Mean time of processEvent in nanoseconds. */
+    double getMeanEventNanos();
+
+    /** Upper bound of the 99th percentile of processEvent in nanoseconds. */
+    long getP99EventNanos();
+
+    double getRecentMeanEventNanos();
+
+    long getRecentP99EventNanos();
+
+    long getRejectedClusters();
+
+    /** Clusters below the npeminclst photoelectron threshold. */
+    long getRejectedByNpeminclst();
+
+    /** Clusters wider in theta than nthetamaxclst. */
+    long getRejectedByNthetamaxclst();
+
+    /** Clusters wider in phi than nphimaxclst. */
+    long getRejectedByNphimaxclst();
+
+    /** Clusters with more hits than nhitmaxclst. */
+    long getRejectedByNhitmaxclst();
+
+    long getParametersVersion();
+
+    /** The active parameters as a packed string. */
+    String getParameters();
+
+    /** OFF, CLUSTERS or HITS. */
+    String getTraceLevel();
+
+    void setTraceLevel(String level);
+}
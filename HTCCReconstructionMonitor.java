@@ -0,0 +1,171 @@
+package org.jlab.rec.htcc;
+
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Exposes the metrics and controls of an <code>HTCCReconstruction</code>
+ * over JMX.
+ * <p>
+ * Attributes are computed from <code>HTCCMetrics</code> snapshots, which read
+ * the per-context recorders without locking them, so a JMX client never slows
+ * the reconstruction down.  Recent values cover the time since a sample that
+ * is between one and two seconds old.
+ */
+final class HTCCReconstructionMonitor implements HTCCReconstructionMXBean {
+    private static final long SAMPLE_NANOS = 1000000000L;
+
+    private final HTCCReconstruction reconstruction;
+
+    // Starts of the previous and of the current sampling interval, guarded
+    // by this
+    private HTCCMetrics.Snapshot previous;
+    private HTCCMetrics.Snapshot latest;
+
+    /**
+     * Creates a monitor.
+     * @param reconstruction the monitored reconstruction
+     */
+    HTCCReconstructionMonitor(HTCCReconstruction reconstruction) {
+        this.reconstruction = reconstruction;
+        latest = reconstruction.getMetrics();
+        previous = latest;
+    }
+
+    /**
+     * Registers a monitor of the given reconstruction with the platform MBean
+     * server, under <code>org.jlab.rec.htcc:type=HTCCReconstruction,name=</code>
+     * the given name.
+     * @param reconstruction the monitored reconstruction
+     * @param name the name distinguishing this reconstruction
+     * @return the name of the registered MBean
+     * @throws JMException if the name is invalid or already taken
+     */
+    static ObjectName register(HTCCReconstruction reconstruction, String name) throws JMException {
+        ObjectName objectName = new ObjectName("org.jlab.rec.htcc:type=HTCCReconstruction,name=" + ObjectName.quote(name));
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        server.registerMBean(new HTCCReconstructionMonitor(reconstruction), objectName);
+        return objectName;
+    }
+
+    private HTCCMetrics.Snapshot total() {
+        return reconstruction.getMetrics();
+    }
+
+    private synchronized HTCCMetrics.Snapshot recent() {
+        HTCCMetrics.Snapshot now = reconstruction.getMetrics();
+        if (now.getElapsedNanos() - latest.getElapsedNanos() >= SAMPLE_NANOS) {
+            previous = latest;
+            latest = now;
+        }
+        return now.since(previous);
+    }
+
+    @Override
+    public long getEvents() {
+        return total().getEvents();
+    }
+
+    @Override
+    public long getHits() {
+        return total().getHits();
+    }
+
+    @Override
+    public long getClusters() {
+        return total().getClusters();
+    }
+
+    @Override
+    public double getEventsPerSecond() {
+        return total().getEventsPerSecond();
+    }
+
+    @Override
+    public double getRecentEventsPerSecond() {
+        return recent().getEventsPerSecond();
+    }
+
+    @Override
+    public double getRecentHitsPerSecond() {
+        return recent().getHitsPerSecond();
+    }
+
+    @Override
+    public double getClustersPerEvent() {
+        return total().getClustersPerEvent();
+    }
+
+    @Override
+    public double getMeanEventNanos() {
+        return total().getMeanNanos(HTCCMetrics.Stage.EVENT);
+    }
+
+    @Override
+    public long getP99EventNanos() {
+        return total().getPercentileNanos(HTCCMetrics.Stage.EVENT, 0.99);
+    }
+
+    @Override
+    public double getRecentMeanEventNanos() {
+        return recent().getMeanNanos(HTCCMetrics.Stage.EVENT);
+    }
+
+    @Override
+    public long getRecentP99EventNanos() {
+        return recent().getPercentileNanos(HTCCMetrics.Stage.EVENT, 0.99);
+    }
+
+    @Override
+    public long getRejectedClusters() {
+        return total().getRejectedClusters();
+    }
+
+    @Override
+    public long getRejectedByNpeminclst() {
+        return total().getRejectedClusters(HTCCMetrics.Cut.NPE);
+    }
+
+    @Override
+    public long getRejectedByNthetamaxclst() {
+        return total().getRejectedClusters(HTCCMetrics.Cut.NTHETA);
+    }
+
+    @Override
+    public long getRejectedByNphimaxclst() {
+        return total().getRejectedClusters(HTCCMetrics.Cut.NPHI);
+    }
+
+    @Override
+    public long getRejectedByNhitmaxclst() {
+        return total().getRejectedClusters(HTCCMetrics.Cut.NHIT);
+    }
+
+    @Override
+    public long getParametersVersion() {
+        return reconstruction.getParametersVersion();
+    }
+
+    @Override
+    public String getParameters() {
+        return reconstruction.getParameters().pack();
+    }
+
+    @Override
+    public String getTraceLevel() {
+        return reconstruction.getTrace().getLevel().name();
+    }
+
+    @Override
+    public void setTraceLevel(String level) {
+        HTCCTrace.Level value;
+        try {
+            value = HTCCTrace.Level.valueOf(level.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("trace level must be OFF, CLUSTERS or HITS: " + level);
+        }
+        reconstruction.setTraceLevel(value);
+    }
+}
@@ -0,0 +1,98 @@
+package org.jlab.rec.htcc;
+
+import java.util.Arrays;
+
+/**
+ * Cluster seed candidates of one event in the order findMaximumHit would pick
+ * them: descending number of photoelectrons, and of hits with the same number
+ * the one with the lowest index first.
+ * <p>
+ * The order is built once per event with a counting sort keyed on the number
+ * of photoelectrons, which spans a small integer range.  Hits absorbed into a
+ * cluster are not removed; the caller skips them as they come up.
+ */
+final class HTCCSeedQueue {
+    // Largest photoelectron range sorted by counting, wider ranges are rare
+    // and fall back to a comparison sort
+    private static final int MAX_BUCKETS = 1 << 16;
+
+    private int[] order = new int[64];
+    private int[] counts = new int[64];
+    private int size;
+    private int cursor;
+
+    /**
+     * Fills the queue with the hits having at least <code>minNphe</code>
+     * photoelectrons.
+     * @param nphe the number of photoelectrons of each hit
+     * @param numHits the number of hits
+     * @param minNphe the smallest number of photoelectrons of a seed
+     */
+    void build(int[] nphe, int numHits, int minNphe) {
+        size = 0;
+        cursor = 0;
+        int max = Integer.MIN_VALUE;
+        for (int hit=0; hit<numHits; ++hit) {
+            if (nphe[hit] >= minNphe) {
+                size++;
+                if (nphe[hit] > max)
+                    max = nphe[hit];
+            }
+        }
+        if (size == 0)
+            return;
+        if (size > order.length)
+            order = new int[Math.max(size, 2*order.length)];
+
+        long range = (long) max - minNphe + 1;
+        if (range > MAX_BUCKETS) {
+            sortByComparison(nphe, numHits, minNphe);
+            return;
+        }
+        int buckets = (int) range;
+        if (buckets > counts.length)
+            counts = new int[Math.max(buckets, 2*counts.length)];
+        Arrays.fill(counts, 0, buckets, 0);
+
+        // Bucket b holds the hits with max - b photoelectrons
+        for (int hit=0; hit<numHits; ++hit) {
+            if (nphe[hit] >= minNphe)
+                counts[max - nphe[hit]]++;
+        }
+        int start = 0;
+        for (int b=0; b<buckets; ++b) {
+            int count = counts[b];
+            counts[b] = start;
+            start += count;
+        }
+        // Hits are placed in increasing index order, so ties keep it
+        for (int hit=0; hit<numHits; ++hit) {
+            if (nphe[hit] >= minNphe)
+                order[counts[max - nphe[hit]]++] = hit;
+        }
+    }
+
+    private void sortByComparison(int[] nphe, int numHits, int minNphe) {
+        int n = 0;
+        for (int hit=0; hit<numHits; ++hit) {
+            if (nphe[hit] < minNphe)
+                continue;
+            // Insert after every hit with at least as many photoelectrons
+            int pos = n;
+            while (pos > 0 && nphe[order[pos-1]] < nphe[hit]) {
+                order[pos] = order[pos-1];
+                pos--;
+            }
+            order[pos] = hit;
+            n++;
+        }
+    }
+
+    /**
+     * Returns the next candidate, or -1 when the queue is exhausted.
+     * @return the index of the next candidate hit or -1
+     */
+    int poll() {
+        return cursor < size ? order[cursor++] : -1;
+    }
+}
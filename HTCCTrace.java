@@ -0,0 +1,271 @@
+package org.jlab.rec.htcc;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Diagnostic trace of the HTCC clustering.
+ * <p>
+ * The level of a trace is fixed when it is created.  To change it, a new
+ * trace writing to the same output is made with <code>withLevel</code> and
+ * swapped in by its owner; records being produced by the old trace may still
+ * be written.  Callers test the final fields <code>clusters</code> or
+ * <code>hits</code> before producing a record, so a disabled trace costs one
+ * plain field read and nothing is formatted or boxed; the owner reads its
+ * trace reference once per event rather than in the per-hit loops.  Enabled records are handed to a bounded queue and
+ * written by a background thread through a buffered writer; if the queue is
+ * full the record is dropped and counted rather than blocking the
+ * reconstruction.  The thread is started the first time a trace of the output
+ * is enabled.
+ */
+class HTCCTrace {
+
+    /**
+     * Amount of detail written by the trace.
+     */
+    enum Level {
+        /** Nothing is traced. */
+        OFF,
+        /** One record per cluster built, accepted or rejected. */
+        CLUSTERS,
+        /** Cluster records plus one record per hit tested while growing. */
+        HITS
+    }
+
+    /**
+     * A trace that is always disabled.
+     */
+    static final HTCCTrace OFF = new HTCCTrace(Level.OFF, (Output) null);
+
+    private static final int QUEUE_CAPACITY = 8192;
+
+    private final Level level;
+    // Cheap guards for the hot path
+    final boolean clusters;
+    final boolean hits;
+
+    // Shared by every trace made from this one by withLevel, or null
+    private final Output output;
+
+    /**
+     * Creates a trace writing records of the given level to the given stream.
+     * @param level the trace level
+     * @param out the stream receiving the records
+     */
+    HTCCTrace(Level level, OutputStream out) {
+        this(level, new Output(out));
+    }
+
+    private HTCCTrace(Level level, Output output) {
+        if (level != Level.OFF)
+            output.start();
+        this.level = level;
+        this.output = output;
+        clusters = level.compareTo(Level.CLUSTERS) >= 0;
+        hits = level.compareTo(Level.HITS) >= 0;
+    }
+
+    Level getLevel() {
+        return level;
+    }
+
+    /**
+     * Returns a trace of the given level writing to the same output as this
+     * one.  A trace without output, such as <code>OFF</code>, gets a new one
+     * writing to standard output.
+     * @param level the level of the new trace
+     * @return the new trace, or this one if it has the given level
+     * @throws IllegalStateException if the output is closed and the level is
+     *         not OFF
+     */
+    HTCCTrace withLevel(Level level) {
+        if (level == this.level)
+            return this;
+        if (output == null)
+            return level == Level.OFF ? OFF : new HTCCTrace(level, System.out);
+        return new HTCCTrace(level, output);
+    }
+
+    /**
+     * Records a cluster once it has been grown.
+     * @param cluster the cluster
+     * @param accepted whether the cluster passed the quality cuts
+     */
+    void cluster(HTCCCluster cluster, boolean accepted) {
+        Record record = new Record(Record.CLUSTER);
+        record.accepted = accepted;
+        record.nhits = cluster.getNHitClust();
+        record.ntheta = cluster.getNThetaClust();
+        record.nphi = cluster.getNPhiClust();
+        record.nphe = cluster.getNPheTot();
+        record.time = cluster.getTime();
+        record.theta = cluster.getTheta();
+        record.phi = cluster.getPhi();
+        output.offer(record);
+    }
+
+    /**
+     * Records a hit tested against a cluster hit while growing a cluster.
+     * @param itheta the theta index of the tested hit
+     * @param iphi the phi index of the tested hit
+     * @param nphe the number of photoelectrons of the tested hit
+     * @param timeDiff the time difference to the cluster
+     * @param accepted whether the hit was added to the cluster
+     */
+    void hit(int itheta, int iphi, int nphe, double timeDiff, boolean accepted) {
+        Record record = new Record(Record.HIT);
+        record.accepted = accepted;
+        record.itheta = itheta;
+        record.iphi = iphi;
+        record.nphe = nphe;
+        record.time = timeDiff;
+        output.offer(record);
+    }
+
+    /**
+     * Returns the number of records dropped because the writer fell behind
+     * or the output was closed.
+     * @return the number of dropped records
+     */
+    long getDropped() {
+        return output == null ? 0L : output.dropped.get();
+    }
+
+    /**
+     * Writes the pending records and stops the writer thread.  Every trace
+     * sharing the output is closed; records they produce are dropped.
+     */
+    void close() {
+        if (output != null)
+            output.close();
+    }
+
+    /**
+     * The queue and writer thread shared by the traces of one stream.
+     */
+    private static final class Output {
+        private final BlockingQueue<Record> queue;
+        private final Writer writer;
+        private Thread thread;
+        private final AtomicLong dropped = new AtomicLong();
+        private volatile boolean closed;
+
+        Output(OutputStream out) {
+            queue = new ArrayBlockingQueue<Record>(QUEUE_CAPACITY);
+            writer = new BufferedWriter(new OutputStreamWriter(out), 1 << 16);
+        }
+
+        synchronized void start() {
+            if (closed)
+                throw new IllegalStateException("trace is closed");
+            if (thread == null) {
+                thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        drain();
+                    }
+                }, "htcc-trace");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+
+        void close() {
+            Thread started;
+            synchronized (this) {
+                if (closed)
+                    return;
+                closed = true;
+                started = thread;
+            }
+            if (started == null)
+                return;
+            try {
+                started.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void offer(Record record) {
+            if (closed || !queue.offer(record))
+                dropped.incrementAndGet();
+        }
+
+        private void drain() {
+            StringBuilder line = new StringBuilder(128);
+            try {
+                while (!closed || !queue.isEmpty()) {
+                    Record record = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (record == null) {
+                        writer.flush();
+                        continue;
+                    }
+                    line.setLength(0);
+                    record.format(line);
+                    writer.write(line.toString());
+                }
+                long lost = dropped.get();
+                if (lost > 0)
+                    writer.write("[HTCC-trace] dropped " + lost + " records\n");
+                writer.flush();
+            } catch (IOException e) {
+                System.err.println("[HTCC-trace] " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * One trace record.  Fields are primitives so that nothing is formatted on
+     * the reconstruction thread.
+     */
+    private static final class Record {
+        static final int CLUSTER = 0;
+        static final int HIT = 1;
+
+        final int type;
+        boolean accepted;
+        int nhits;
+        int ntheta;
+        int nphi;
+        int itheta;
+        int iphi;
+        int nphe;
+        double time;
+        double theta;
+        double phi;
+
+        Record(int type) {
+            this.type = type;
+        }
+
+        void format(StringBuilder line) {
+            if (type == CLUSTER) {
+                line.append("[HTCC-trace] cluster accepted=").append(accepted)
+                    .append(" nhits=").append(nhits)
+                    .append(" ntheta=").append(ntheta)
+                    .append(" nphi=").append(nphi)
+                    .append(" nphe=").append(nphe)
+                    .append(" time=").append(time)
+                    .append(" theta=").append(theta)
+                    .append(" phi=").append(phi);
+            } else {
+                line.append("[HTCC-trace] hit accepted=").append(accepted)
+                    .append(" itheta=").append(itheta)
+                    .append(" iphi=").append(iphi)
+                    .append(" nphe=").append(nphe)
+                    .append(" dt=").append(time);
+            }
+            line.append('\n');
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package org.jlab.rec.htcc;
+
+/**
+ * Contains the HTCC reconstruction parameters.
+ * <p>
+ * The parameters are not modified after construction, so one instance is a
+ * snapshot that any number of threads may share without locking.  The arrays
+ * are copies owned by the instance and must not be changed by callers.
+ * <p>
+ * A snapshot can be written to and read from a compact packed string of
+ * <code>key=value</code> entries separated by <code>;</code>, with array
+ * elements separated by <code>,</code>, for example
+ * <pre>
+ * npheminhit=1;maxtimediff=2.0;t0=11.553,11.943,12.339,12.75
+ * </pre>
+ * Keys are the field names below.  Angles are in radians.  The clustering
+ * mode is given by name, for example <code>clustering=CONNECTED</code>, and
+ * flags as <code>true</code> or <code>false</code>.  Keys
+ * that are left out keep their default value, except <code>channelT0</code>,
+ * which defaults to the ring offsets <code>t0</code> given in the same
+ * string.  Doubles are written with <code>Double.toString</code>, so
+ * <code>pack</code> and the packed string constructor round-trip every value
+ * exactly.  <code>pack</code> starts the string with the key
+ * <code>formatVersion</code>; a string without it is read as the current
+ * format, and one with any other version is rejected.  Entries without a key
+ * or a value, values that are not finite numbers and arrays with missing
+ * elements are rejected as well.
+ */
+final class ReconstructionParameters {
+    static final int NUM_RINGS = 4;
+    // Version of the packed string format written by pack
+    static final int FORMAT_VERSION = 1;
+
+    /**
+     * How hits are grouped into clusters.
+     */
+    enum ClusteringMode {
+        /**
+         * Seed and grow: the hit with the most photoelectrons seeds a cluster,
+         * which absorbs neighbors within maxtimediff of its running mean time.
+         * Clustering of an event stops at the first rejected cluster.
+         */
+        LEGACY,
+        /**
+         * Connected components: neighboring hits within maxtimediff of each
+         * other are linked, and each group of linked hits holding a possible
+         * seed is a cluster.  The result does not depend on the order of the
+         * hits, and a rejected cluster does not stop the clustering.  Events
+         * in which two hits share a channel are clustered as in LEGACY.
+         * <p>
+         * This mode deliberately gives different clusters from LEGACY, it is
+         * not a faster way to the same result: a chain of hits each close in
+         * time to the next forms one cluster where LEGACY, comparing with the
+         * running mean time, may split it, and the clusters after a rejected
+         * one are kept where LEGACY drops them.
+         */
+        CONNECTED
+    }
+
+    private static final ReconstructionParameters DEFAULTS = new ReconstructionParameters();
+
+    final double theta0[];
+    final double dtheta0[];
+    final double thetaRange;
+    final double phiRange[];
+    final double phi0;
+    final double dphi0;
+    final int npeminclst;
+    final int npheminmax;
+    final int npheminhit;
+    final int nhitmaxclst;
+    final int nthetamaxclst;
+    final int nphimaxclst;
+    final double maxtimediff;
+    final double t0[];
+    // Timing offset of each channel (sector, half and ring), indexed by the
+    // channel id of HTCCChannelTable
+    final double channelT0[];
+    final ClusteringMode clustering;
+    // Whether a cluster stops growing as soon as it exceeds nhitmaxclst,
+    // nthetamaxclst or nphimaxclst.  It is rejected either way, and since a
+    // rejected cluster ends the clustering of the event the accepted clusters
+    // are the same; only the rejected cluster, as traced and counted, is
+    // smaller.  In CONNECTED mode an oversized component is rejected without
+    // building its cluster.  Off by default, to reproduce the legacy trace
+    // exactly.
+    final boolean earlyTermination;
+
+    // Per-channel lookup table derived from the parameters above
+    final HTCCChannelTable channels;
+
+    /**
+     * Initialize reconstruction parameters with sensible defaults.
+     */
+    ReconstructionParameters() {
+        theta0 = new double[] { 8.75, 16.25, 23.75, 31.25 };
+        dtheta0 = new double[] { 3.75, 3.75, 3.75, 3.75 } ;
+        phiRange = new double[]{4, 2.4, 1.6, 1.2};
+
+        for (int i=0; i<4; ++i) {
+            theta0[i] = Math.toRadians(theta0[i]);
+            dtheta0[i] = Math.toRadians(dtheta0[i]);
+            phiRange[i] = Math.toRadians(phiRange[i]);
+        }
+        thetaRange = Math.toRadians(1.2);
+        phi0 = Math.toRadians(15.0);
+        dphi0 = Math.toRadians(15.0);
+        npeminclst = 1;
+        npheminmax = 1;
+        npheminhit = 1;
+        nhitmaxclst = 4;
+        nthetamaxclst = 2;
+        nphimaxclst = 2;
+        maxtimediff = 2;
+        t0 = new double[] { 11.553, 11.943, 12.339, 12.75 };
+        channelT0 = ringOffsets(t0);
+        clustering = ClusteringMode.LEGACY;
+        earlyTermination = false;
+
+        channels = new HTCCChannelTable(this);
+    }
+
+    /**
+     * Initialize reconstruction parameters from a packed string, see
+     * <code>pack</code>.
+     * @param packed_string the packed string
+     * @throws IllegalArgumentException if the string is malformed, has an
+     *         unknown key or format version, a missing or bad value or an
+     *         array of the wrong length
+     */
+    ReconstructionParameters(String packed_string) {
+        ReconstructionParameters d = DEFAULTS;
+        double[] theta0Value = d.theta0;
+        double[] dtheta0Value = d.dtheta0;
+        double thetaRangeValue = d.thetaRange;
+        double[] phiRangeValue = d.phiRange;
+        double phi0Value = d.phi0;
+        double dphi0Value = d.dphi0;
+        int npeminclstValue = d.npeminclst;
+        int npheminmaxValue = d.npheminmax;
+        int npheminhitValue = d.npheminhit;
+        int nhitmaxclstValue = d.nhitmaxclst;
+        int nthetamaxclstValue = d.nthetamaxclst;
+        int nphimaxclstValue = d.nphimaxclst;
+        double maxtimediffValue = d.maxtimediff;
+        double[] t0Value = d.t0;
+        double[] channelT0Value = null;
+        ClusteringMode clusteringValue = d.clustering;
+        boolean earlyTerminationValue = d.earlyTermination;
+
+        int length = packed_string.length();
+        int start = 0;
+        while (start < length) {
+            int end = packed_string.indexOf(';', start);
+            if (end < 0)
+                end = length;
+            int equals = packed_string.indexOf('=', start);
+            if (equals < 0 || equals > end) {
+                if (packed_string.substring(start, end).trim().isEmpty()) {
+                    start = end + 1;
+                    continue;
+                }
+                throw new IllegalArgumentException("missing '=' at offset " + start);
+            }
+            String key = packed_string.substring(start, equals).trim();
+            String value = packed_string.substring(equals + 1, end).trim();
+            if (key.isEmpty())
+                throw new IllegalArgumentException("missing key at offset " + start);
+            if (value.isEmpty())
+                throw new IllegalArgumentException("missing value for " + key);
+            switch (key) {
+                case "formatVersion":
+                    if (parseInt(key, value) != FORMAT_VERSION)
+                        throw new IllegalArgumentException("unsupported parameters format version " + value +
+                                                           ", expected " + FORMAT_VERSION);
+                    break;
+                case "theta0":        theta0Value = parseArray(key, value, NUM_RINGS); break;
+                case "dtheta0":       dtheta0Value = parseArray(key, value, NUM_RINGS); break;
+                case "thetaRange":    thetaRangeValue = parseDouble(key, value); break;
+                case "phiRange":      phiRangeValue = parseArray(key, value, NUM_RINGS); break;
+                case "phi0":          phi0Value = parseDouble(key, value); break;
+                case "dphi0":         dphi0Value = parseDouble(key, value); break;
+                case "npeminclst":    npeminclstValue = parseInt(key, value); break;
+                case "npheminmax":    npheminmaxValue = parseInt(key, value); break;
+                case "npheminhit":    npheminhitValue = parseInt(key, value); break;
+                case "nhitmaxclst":   nhitmaxclstValue = parseInt(key, value); break;
+                case "nthetamaxclst": nthetamaxclstValue = parseInt(key, value); break;
+                case "nphimaxclst":   nphimaxclstValue = parseInt(key, value); break;
+                case "maxtimediff":   maxtimediffValue = parseDouble(key, value); break;
+                case "t0":            t0Value = parseArray(key, value, NUM_RINGS); break;
+                case "channelT0":     channelT0Value = parseArray(key, value, HTCCChannelTable.NUM_CHANNELS); break;
+                case "clustering":    clusteringValue = parseMode(key, value); break;
+                case "earlyTermination": earlyTerminationValue = parseBoolean(key, value); break;
+                default:
+                    throw new IllegalArgumentException("unknown parameter " + key);
+            }
+            start = end + 1;
+        }
+
+        theta0 = theta0Value.clone();
+        dtheta0 = dtheta0Value.clone();
+        thetaRange = thetaRangeValue;
+        phiRange = phiRangeValue.clone();
+        phi0 = phi0Value;
+        dphi0 = dphi0Value;
+        npeminclst = npeminclstValue;
+        npheminmax = npheminmaxValue;
+        npheminhit = npheminhitValue;
+        nhitmaxclst = nhitmaxclstValue;
+        nthetamaxclst = nthetamaxclstValue;
+        nphimaxclst = nphimaxclstValue;
+        maxtimediff = maxtimediffValue;
+        t0 = t0Value.clone();
+        channelT0 = channelT0Value != null ? channelT0Value : ringOffsets(t0);
+        clustering = clusteringValue;
+        earlyTermination = earlyTerminationValue;
+
+        channels = new HTCCChannelTable(this);
+    }
+
+    /**
+     * Returns the packed string of these parameters.  Every value is written,
+     * so the string does not depend on the defaults.
+     * @return the packed string
+     */
+    String pack() {
+        StringBuilder packed = new StringBuilder(512);
+        packed.append("formatVersion=").append(FORMAT_VERSION).append(';');
+        appendArray(packed, "theta0", theta0);
+        appendArray(packed, "dtheta0", dtheta0);
+        packed.append("thetaRange=").append(thetaRange).append(';');
+        appendArray(packed, "phiRange", phiRange);
+        packed.append("phi0=").append(phi0).append(';');
+        packed.append("dphi0=").append(dphi0).append(';');
+        packed.append("npeminclst=").append(npeminclst).append(';');
+        packed.append("npheminmax=").append(npheminmax).append(';');
+        packed.append("npheminhit=").append(npheminhit).append(';');
+        packed.append("nhitmaxclst=").append(nhitmaxclst).append(';');
+        packed.append("nthetamaxclst=").append(nthetamaxclst).append(';');
+        packed.append("nphimaxclst=").append(nphimaxclst).append(';');
+        packed.append("maxtimediff=").append(maxtimediff).append(';');
+        appendArray(packed, "t0", t0);
+        appendArray(packed, "channelT0", channelT0);
+        packed.append("clustering=").append(clustering.name()).append(';');
+        packed.append("earlyTermination=").append(earlyTermination).append(';');
+        packed.setLength(packed.length() - 1);
+        return packed.toString();
+    }
+
+    @Override
+    public String toString() {
+        return pack();
+    }
+
+    private static void appendArray(StringBuilder packed, String key, double[] values) {
+        packed.append(key).append('=');
+        for (int i=0; i<values.length; ++i) {
+            if (i > 0)
+                packed.append(',');
+            packed.append(values[i]);
+        }
+        packed.append(';');
+    }
+
+    /**
+     * Returns the per-channel offsets that apply the given ring offset to
+     * every channel of the ring.
+     * @param ringT0 the offset of each ring
+     * @return the offset of each channel
+     */
+    private static double[] ringOffsets(double[] ringT0) {
+        double[] offsets = new double[HTCCChannelTable.NUM_CHANNELS];
+        for (int channel=0; channel<offsets.length; ++channel)
+            offsets[channel] = ringT0[HTCCChannelTable.itheta(channel)];
+        return offsets;
+    }
+
+    private static double[] parseArray(String key, String value, int length) {
+        double[] values = new double[length];
+        int count = 0;
+        int start = 0;
+        while (true) {
+            int end = value.indexOf(',', start);
+            if (end < 0)
+                end = value.length();
+            if (count == length)
+                throw new IllegalArgumentException(key + " must have " + length + " values");
+            String element = value.substring(start, end).trim();
+            if (element.isEmpty())
+                throw new IllegalArgumentException("missing element " + count + " of " + key);
+            values[count++] = parseDouble(key, element);
+            if (end == value.length())
+                break;
+            start = end + 1;
+        }
+        if (count != length)
+            throw new IllegalArgumentException(key + " must have " + length + " values");
+        return values;
+    }
+
+    private static double parseDouble(String key, String value) {
+        double parsed;
+        try {
+            parsed = Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("bad value for " + key + ": " + value, e);
+        }
+        if (Double.isNaN(parsed) || Double.isInfinite(parsed))
+            throw new IllegalArgumentException("bad value for " + key + ": " + value);
+        return parsed;
+    }
+
+    private static ClusteringMode parseMode(String key, String value) {
+        try {
+            return ClusteringMode.valueOf(value.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("bad value for " + key + ": " + value, e);
+        }
+    }
+
+    private static boolean parseBoolean(String key, String value) {
+        if (value.equalsIgnoreCase("true"))
+            return true;
+        if (value.equalsIgnoreCase("false"))
+            return false;
+        throw new IllegalArgumentException("bad value for " + key + ": " + value);
+    }
+
+    private static int parseInt(String key, String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("bad value for " + key + ": " + value, e);
+        }
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof ReconstructionParameters))
+            return false;
+        return pack().equals(((ReconstructionParameters) other).pack());
+    }
+
+    @Override
+    public int hashCode() {
+        return pack().hashCode();
+    }
+}